@@ -0,0 +1,81 @@
+package orangepay;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Optional;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+import orangepay.OrangeUtils.*;
+
+/**
+ * Azure Function with HTTP Trigger for generating many merchant QR codes at once.
+ * Returns a ZIP archive with one PNG per request.
+ */
+public class BulkQRCodeFunction {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final OrangeMoneyApi orangeMoneyApi = new OrangeMoneyApi();
+
+    // The Functions host buffers the whole response, so cap the batch size here
+    private static final int MAX_ITEMS = (int) OrangeUtils.envLong("BULK_QR_MAX_ITEMS", 5000);
+    private static final int MAX_IN_FLIGHT = (int) OrangeUtils.envLong("BULK_QR_MAX_IN_FLIGHT", 32);
+
+    @FunctionName("generateQRCodeBulk")
+    public HttpResponseMessage run(
+            @HttpTrigger(name = "req",
+                         methods = {HttpMethod.POST},
+                         authLevel = AuthorizationLevel.FUNCTION,
+                         dataType = "json") HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+
+        context.getLogger().info("Java HTTP trigger processed a request to generate QR codes in bulk.");
+
+        if (!request.getBody().isPresent() || request.getBody().get().isBlank()) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Missing request body").build();
+        }
+
+        List<GenerateQRCodeRequest> qrRequests;
+        try {
+            qrRequests = objectMapper.readValue(request.getBody().get(),
+                    new TypeReference<List<GenerateQRCodeRequest>>() {});
+        } catch (Exception e) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Error parsing request: " + e.getMessage()).build();
+        }
+
+        if (qrRequests.isEmpty() || qrRequests.size() > MAX_ITEMS) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body("Request must contain between 1 and " + MAX_ITEMS + " QR Code requests").build();
+        }
+        for (int i = 0; i < qrRequests.size(); i++) {
+            if (qrRequests.get(i) == null || !qrRequests.get(i).isValid()) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Invalid QR Code request at index " + i).build();
+            }
+        }
+
+        try {
+            ByteArrayOutputStream zip = new ByteArrayOutputStream();
+            BulkQRCodeGenerator generator = new BulkQRCodeGenerator(orangeMoneyApi, MAX_IN_FLIGHT, 300);
+            BulkQRCodeGenerator.Summary summary = generator.generate(qrRequests, zip);
+            context.getLogger().info("Generated " + summary.generated + " QR codes, " + summary.failed + " failed.");
+
+            return request.createResponseBuilder(HttpStatus.OK)
+                    .header("Content-Type", "application/zip")
+                    .header("Content-Disposition", "attachment; filename=\"qrcodes.zip\"")
+                    .body(zip.toByteArray())
+                    .build();
+        } catch (Exception e) {
+            context.getLogger().severe("Failed to generate QR codes: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR).body("Error generating QR codes: " + e.getMessage()).build();
+        }
+    }
+}
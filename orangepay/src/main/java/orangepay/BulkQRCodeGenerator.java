@@ -0,0 +1,241 @@
+package orangepay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import orangepay.OrangeUtils.*;
+import orangepay.UpstreamScheduler.Priority;
+
+/**
+ * Generates merchant QR codes in bulk and streams them into a ZIP archive.
+ *
+ * Upstream links are fetched with at most {@code maxInFlight} requests
+ * outstanding, images are rendered on a fork-join pool, and each PNG is written
+ * to the archive as soon as it is ready. The same permit that bounds upstream
+ * concurrency is held until the image is written, so memory use does not grow
+ * with the size of the batch.
+ *
+ * One OAuth token is shared by the batch. When a call is rejected with 401,
+ * as happens once a long run outlives the token, a fresh token is fetched
+ * and the call is retried once.
+ */
+public class BulkQRCodeGenerator {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ForkJoinPool renderPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final OrangeMoneyApi orangeMoneyApi;
+    private final int maxInFlight;
+    private final int imageSize;
+
+    public BulkQRCodeGenerator(OrangeMoneyApi orangeMoneyApi, int maxInFlight, int imageSize) {
+        this.orangeMoneyApi = orangeMoneyApi;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.imageSize = imageSize;
+    }
+
+    /**
+     * Counts of generated and failed QR codes for one batch.
+     */
+    public static class Summary {
+        public int generated;
+        public int failed;
+    }
+
+    // The batch's current token, replaced at most once per expiry however many calls see the 401
+    private static class TokenHolder {
+        private String token;
+
+        TokenHolder(String token) {
+            this.token = token;
+        }
+
+        synchronized String current() {
+            return token;
+        }
+
+        synchronized String refresh(String stale) {
+            if (token.equals(stale)) {
+                try {
+                    token = OrangeMoneyApi.getToken(Priority.BULK);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+            return token;
+        }
+    }
+
+    private static class Result {
+        final int index;
+        final GenerateQRCodeRequest request;
+        final byte[] png;
+        final Throwable error;
+
+        Result(int index, GenerateQRCodeRequest request, byte[] png, Throwable error) {
+            this.index = index;
+            this.request = request;
+            this.png = png;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Generates one PNG per request and writes them to {@code out} as a ZIP.
+     * Failed entries are listed in an {@code errors.txt} entry at the end.
+     */
+    public Summary generate(List<GenerateQRCodeRequest> requests, OutputStream out) throws Exception {
+        TokenHolder token = new TokenHolder(OrangeMoneyApi.getToken(Priority.BULK));
+        Semaphore permits = new Semaphore(maxInFlight);
+        BlockingQueue<Result> completed = new LinkedBlockingQueue<>();
+        Summary summary = new Summary();
+        StringBuilder errors = new StringBuilder();
+
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            int written = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                // Drain finished images while waiting for a free slot
+                while (!permits.tryAcquire()) {
+                    write(zip, completed.take(), summary, errors);
+                    permits.release();
+                    written++;
+                }
+                submit(i, requests.get(i), token, completed);
+            }
+            while (written < requests.size()) {
+                write(zip, completed.take(), summary, errors);
+                permits.release();
+                written++;
+            }
+
+            if (errors.length() > 0) {
+                zip.putNextEntry(new ZipEntry("errors.txt"));
+                zip.write(errors.toString().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return summary;
+    }
+
+    private void submit(int index, GenerateQRCodeRequest request, TokenHolder token,
+            BlockingQueue<Result> completed) {
+        if (request == null || !request.isValid()) {
+            // Also keeps the merchant code safe to use in the ZIP entry name
+            completed.add(new Result(index, request, null, new IllegalArgumentException("Invalid QR Code request")));
+            return;
+        }
+        String jsonRequest;
+        try {
+            jsonRequest = objectMapper.writeValueAsString(request);
+        } catch (Exception e) {
+            completed.add(new Result(index, request, null, e));
+            return;
+        }
+        fetch(jsonRequest, token, false)
+                .thenApplyAsync(this::render, renderPool)
+                .whenComplete((png, error) -> completed.add(new Result(index, request, png, error)));
+    }
+
+    private CompletableFuture<String> fetch(String jsonRequest, TokenHolder token, boolean retried) {
+        String current = token.current();
+        return orangeMoneyApi.callOrangeMoneyApiAsync("api/eWallet/v4/qrcode", jsonRequest, current, Priority.BULK)
+                .exceptionallyCompose(error -> {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    if (retried || !(cause instanceof OrangeMoneyApiException)
+                            || ((OrangeMoneyApiException) cause).getStatusCode() != 401) {
+                        return CompletableFuture.failedFuture(error);
+                    }
+                    // getToken blocks, so keep it off the HTTP client's threads
+                    return CompletableFuture.supplyAsync(() -> token.refresh(current), renderPool)
+                            .thenCompose(fresh -> fetch(jsonRequest, token, true));
+                });
+    }
+
+    private byte[] render(String qrCodeResponse) {
+        try {
+            JsonNode rootNode = objectMapper.readTree(qrCodeResponse);
+            String deepLink = rootNode.path("deepLink").asText();
+            if (deepLink.isEmpty()) {
+                throw new IllegalStateException("No deepLink in QR code response");
+            }
+            BitMatrix matrix = new QRCodeWriter().encode(deepLink, BarcodeFormat.QR_CODE, imageSize, imageSize);
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            MatrixToImageWriter.writeToStream(matrix, "PNG", png);
+            return png.toByteArray();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to render QR code: " + e.getMessage(), e);
+        }
+    }
+
+    private static void write(ZipOutputStream zip, Result result, Summary summary, StringBuilder errors)
+            throws IOException {
+        if (result.error != null) {
+            Throwable cause = result.error.getCause() != null ? result.error.getCause() : result.error;
+            errors.append(result.index).append('\t').append(result.request == null ? "" : result.request.getCode())
+                    .append('\t').append(cause.getMessage()).append('\n');
+            summary.failed++;
+            return;
+        }
+        zip.putNextEntry(new ZipEntry(String.format("%05d-%s.png", result.index, result.request.getCode())));
+        zip.write(result.png);
+        zip.closeEntry();
+        summary.generated++;
+    }
+
+    /**
+     * Command-line entry point: {@code BulkQRCodeGenerator <requests.json> <output.zip>}.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: BulkQRCodeGenerator <requests.json> <output.zip>");
+            System.exit(2);
+        }
+        try {
+            Path input = Paths.get(args[0]);
+            List<GenerateQRCodeRequest> requests = objectMapper.readValue(input.toFile(),
+                    new TypeReference<List<GenerateQRCodeRequest>>() {});
+            for (int i = 0; i < requests.size(); i++) {
+                if (requests.get(i) == null || !requests.get(i).isValid()) {
+                    System.err.println("Invalid QR Code request at index " + i);
+                    System.exit(1);
+                }
+            }
+
+            BulkQRCodeGenerator generator = new BulkQRCodeGenerator(new OrangeMoneyApi(), 32, 300);
+            try (OutputStream out = Files.newOutputStream(Paths.get(args[1]))) {
+                Summary summary = generator.generate(requests, out);
+                System.out.println("Generated: " + summary.generated + ", failed: " + summary.failed);
+            }
+        } catch (Exception e) {
+            System.err.println("An error occurred: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            renderPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package orangepay;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget for one inbound request, shared by every upstream call it makes.
+ *
+ * The budget comes from the {@code x-request-timeout-ms} header when present,
+ * capped at {@code OM_MAX_REQUEST_TIMEOUT_MS}, and otherwise from
+ * {@code OM_REQUEST_TIMEOUT_MS}.
+ */
+public final class Deadline {
+
+    public static final String TIMEOUT_HEADER = "x-request-timeout-ms";
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = OrangeUtils.envLong("OM_REQUEST_TIMEOUT_MS", 15000);
+    private static final long MAX_TIMEOUT_MILLIS = OrangeUtils.envLong("OM_MAX_REQUEST_TIMEOUT_MS", 60000);
+
+    static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "deadline-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Most calls finish well before their deadline; drop their timeouts from
+        // the queue on cancel instead of holding them until they would have fired
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static Deadline afterMillis(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Deadline for calls made outside an inbound request, e.g. replays and bulk work.
+     */
+    public static Deadline fromConfig() {
+        return afterMillis(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Deadline for an inbound request, honouring the caller's timeout header.
+     */
+    public static Deadline fromHeaders(Map<String, String> headers) {
+        String value = headers != null ? headers.get(TIMEOUT_HEADER) : null;
+        if (value != null) {
+            try {
+                long millis = Long.parseLong(value.trim());
+                if (millis > 0) {
+                    return afterMillis(Math.min(millis, MAX_TIMEOUT_MILLIS));
+                }
+            } catch (NumberFormatException e) {
+                // Fall back to the configured budget
+            }
+        }
+        return fromConfig();
+    }
+
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+    /**
+     * Returns the time left for {@code step}, or throws if there is none.
+     */
+    public Duration remaining(String step) {
+        long remaining = remainingNanos();
+        if (remaining <= 0) {
+            throw new DeadlineExceededException(false, "Deadline exceeded before " + step, null);
+        }
+        return Duration.ofNanos(remaining);
+    }
+
+    /**
+     * Returns a future that fails with {@link DeadlineExceededException} when the
+     * deadline runs out, cancelling {@code future} at the same time.
+     */
+    public <T> CompletableFuture<T> bound(CompletableFuture<T> future) {
+        long remaining = remainingNanos();
+        if (remaining <= 0) {
+            future.cancel(true);
+            return CompletableFuture.failedFuture(new DeadlineExceededException(false, "Deadline exceeded", null));
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (result.completeExceptionally(new DeadlineExceededException(true, "Deadline exceeded", null))) {
+                future.cancel(true);
+            }
+        }, remaining, TimeUnit.NANOSECONDS);
+        future.whenComplete((value, error) -> {
+            timeout.cancel(false);
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,23 @@
+package orangepay;
+
+/**
+ * Thrown when a request's deadline runs out before an upstream call finishes.
+ */
+public class DeadlineExceededException extends OrangeMoneyApiException {
+
+    private final boolean requestSent;
+
+    public DeadlineExceededException(boolean requestSent, String message, Throwable cause) {
+        super(0, message, cause);
+        this.requestSent = requestSent;
+    }
+
+    /**
+     * Whether the final upstream request, e.g. the payment itself, had already
+     * been sent, in which case its outcome is unknown. When false, the payment
+     * never reached Orange Money, even if a token or key request did.
+     */
+    public boolean isRequestSent() {
+        return requestSent;
+    }
+}
@@ -2,6 +2,7 @@ package orangepay;
 
 import java.util.Optional;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.HttpMethod;
@@ -12,11 +13,18 @@ import com.microsoft.azure.functions.annotation.AuthorizationLevel;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.HttpTrigger;
 
+import orangepay.UpstreamScheduler.Priority;
+
 public class OSPFunction {
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
     private static final OrangeMoneyApi orangeMoneyApi = new OrangeMoneyApi();
 
+    static {
+        // Open the outbox as soon as the function loads, so payments queued before a restart replay
+        PaymentOutbox.getDefault();
+    }
+
     @FunctionName("OneStepPayment")
     public HttpResponseMessage processOneStepPayment(
             @HttpTrigger(name = "req",
@@ -26,6 +34,7 @@ public class OSPFunction {
             final ExecutionContext context) {
 
         context.getLogger().info("Processing a one-step payment request.");
+        Deadline deadline = Deadline.fromHeaders(request.getHeaders());
 
         // Extract and validate the JSON request body
         String jsonRequest = request.getBody().orElse("");
@@ -34,27 +43,49 @@ public class OSPFunction {
         }
 
         // Optionally, validate JSON structure here (simple validation example)
-        if (!isValidJsonRequest(jsonRequest)) {
+        JsonNode rootNode = parseJsonRequest(jsonRequest);
+        if (rootNode == null) {
             return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Invalid request structure").build();
         }
 
+        VelocityGuard.Verdict verdict = VelocityGuard.getDefault().check(
+                rootNode.path("customer").path("id").asText(null),
+                rootNode.path("partner").path("id").asText(null),
+                VelocityGuard.clientIp(request.getHeaders()));
+        if (verdict != VelocityGuard.Verdict.ALLOWED) {
+            context.getLogger().warning("Rejected payment request: " + verdict);
+            return request.createResponseBuilder(HttpStatus.TOO_MANY_REQUESTS).body("Too many requests").build();
+        }
+
+        String method = "api/eWallet/v1/payments/onestep"; // Specify the actual API URL
+        long startNanos = System.nanoTime();
         try {
-            String method = "api/eWallet/v1/payments/onestep"; // Specify the actual API URL
-            String paymentResponse = orangeMoneyApi.callOrangeMoneyApi(method, jsonRequest);
+            String paymentResponse = orangeMoneyApi.callOrangeMoneyApi(method, jsonRequest, Priority.INTERACTIVE, deadline);
+            PaymentAnalytics.getDefault().recordPayment(rootNode, "OneStepPayment", startNanos, true);
             return request.createResponseBuilder(HttpStatus.OK).body(paymentResponse).build();
         } catch (Exception e) {
+            PaymentAnalytics.getDefault().recordPayment(rootNode, "OneStepPayment", startNanos, false);
             context.getLogger().severe("Failed to process payment: " + e.getMessage());
+            if (e instanceof DeadlineExceededException && !((DeadlineExceededException) e).isRequestSent()) {
+                // Nothing reached Orange Money, so the client can safely retry
+                return request.createResponseBuilder(HttpStatus.GATEWAY_TIMEOUT).body("Request timed out").build();
+            }
+            if (e instanceof OrangeMoneyApiException && ((OrangeMoneyApiException) e).isRetryable()) {
+                HttpResponseMessage queued = PaymentOutbox.queuePayment(request, method, jsonRequest, rootNode, e, context);
+                if (queued != null) {
+                    return queued;
+                }
+            }
             return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to process payment").build();
         }
     }
 
     // Simple JSON structure validation example
-    private boolean isValidJsonRequest(String jsonRequest) {
+    private JsonNode parseJsonRequest(String jsonRequest) {
         try {
-            objectMapper.readTree(jsonRequest);
-            return true; // JSON is valid if it can be parsed
+            return objectMapper.readTree(jsonRequest); // JSON is valid if it can be parsed
         } catch (Exception e) {
-            return false; // JSON is invalid
+            return null; // JSON is invalid
         }
     }
 }
@@ -8,10 +8,17 @@ import com.microsoft.azure.functions.*;
 
 import java.util.Optional;
 
+import orangepay.UpstreamScheduler.Priority;
+
 public class OneStepPaymentFunction {
     private static final ObjectMapper objectMapper = new ObjectMapper(); // Declare and initialize ObjectMapper here
     private static final OrangeMoneyApi orangeMoneyApi = new OrangeMoneyApi();
 
+    static {
+        // Open the outbox as soon as the function loads, so payments queued before a restart replay
+        PaymentOutbox.getDefault();
+    }
+
     @FunctionName("processOneStepPayment")
     public HttpResponseMessage run(
             @HttpTrigger(name = "req", 
@@ -21,6 +28,7 @@ public class OneStepPaymentFunction {
             final ExecutionContext context) {
         
         context.getLogger().info("Processing a one-step payment request.");
+        Deadline deadline = Deadline.fromHeaders(request.getHeaders());
 
         if (!request.getBody().isPresent() || request.getBody().get().isBlank()) {
             return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Missing or empty request body").build();
@@ -30,27 +38,55 @@ public class OneStepPaymentFunction {
 
         // Here you would validate the JSON structure. This example assumes you have a method for that.
         // For instance, ensure required fields are present and properly formatted.
-        if (!isValidJsonRequest(jsonRequest)) {
+        JsonNode rootNode = parseJsonRequest(jsonRequest);
+        if (rootNode == null || !isValidJsonRequest(rootNode)) {
             return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Invalid JSON request structure").build();
         }
 
+        VelocityGuard.Verdict verdict = VelocityGuard.getDefault().check(
+                rootNode.path("customer").path("id").asText(),
+                rootNode.path("partner").path("id").asText(),
+                VelocityGuard.clientIp(request.getHeaders()));
+        if (verdict != VelocityGuard.Verdict.ALLOWED) {
+            context.getLogger().warning("Rejected payment request: " + verdict);
+            return request.createResponseBuilder(HttpStatus.TOO_MANY_REQUESTS).body("Too many requests").build();
+        }
+
+        // Define the API URL for the one-step payment endpoint. Replace <OneStepPaymentApiUrl> with the actual URL.
+        String method = "api/eWallet/v1/payments/onestep";
+        long startNanos = System.nanoTime();
         try {
-            // Retrieve the token
-            // Define the API URL for the one-step payment endpoint. Replace <OneStepPaymentApiUrl> with the actual URL.
-            String method = "api/eWallet/v1/payments/onestep";
-            String paymentResponse = orangeMoneyApi.callOrangeMoneyApi(method, jsonRequest);
+            String paymentResponse = orangeMoneyApi.callOrangeMoneyApi(method, jsonRequest, Priority.INTERACTIVE, deadline);
+            PaymentAnalytics.getDefault().recordPayment(rootNode, "processOneStepPayment", startNanos, true);
             // Assuming paymentResponse contains the result of the payment process
             return request.createResponseBuilder(HttpStatus.OK).body(paymentResponse).build();
         } catch (Exception e) {
+            PaymentAnalytics.getDefault().recordPayment(rootNode, "processOneStepPayment", startNanos, false);
             context.getLogger().severe("Failed to process payment: " + e.getMessage());
+            if (e instanceof DeadlineExceededException && !((DeadlineExceededException) e).isRequestSent()) {
+                // Nothing reached Orange Money, so the client can safely retry
+                return request.createResponseBuilder(HttpStatus.GATEWAY_TIMEOUT).body("Request timed out").build();
+            }
+            if (e instanceof OrangeMoneyApiException && ((OrangeMoneyApiException) e).isRetryable()) {
+                HttpResponseMessage queued = PaymentOutbox.queuePayment(request, method, jsonRequest, rootNode, e, context);
+                if (queued != null) {
+                    return queued;
+                }
+            }
             return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to process payment: " + e.getMessage()).build();
         }
     }
 
-    private boolean isValidJsonRequest(String jsonRequest) {
+    private JsonNode parseJsonRequest(String jsonRequest) {
+        try {
+            return objectMapper.readTree(jsonRequest);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private boolean isValidJsonRequest(JsonNode rootNode) {
         try {
-            JsonNode rootNode = objectMapper.readTree(jsonRequest);
-            
             // Validate 'amount' object structure
             if (!rootNode.hasNonNull("amount") || !rootNode.path("amount").hasNonNull("value") || rootNode.path("amount").path("value").floatValue() < 1) {
                 return false;
@@ -94,7 +130,7 @@ public class OneStepPaymentFunction {
 
             return true;
         } catch (Exception e) {
-            return false; // JSON is invalid if parsing fails or checks do not pass
+            return false; // JSON is invalid if checks do not pass
         }
     }
 
@@ -3,6 +3,7 @@ package orangepay;
 import com.microsoft.azure.functions.annotation.*;
 
 import orangepay.OrangeUtils.*;
+import orangepay.UpstreamScheduler.Priority;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -19,6 +20,7 @@ public class OneTimePasswordFunction {
             final ExecutionContext context) {
 
         context.getLogger().info("Processing a request to generate OTP for Payment.");
+        Deadline deadline = Deadline.fromHeaders(request.getHeaders());
 
         if (!isValidRequest(request.getBody())) {
             return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Missing request body").build();
@@ -26,11 +28,18 @@ public class OneTimePasswordFunction {
 
         OTPRequest receivedRequest = request.getBody();
 
+        VelocityGuard.Verdict verdict = VelocityGuard.getDefault().check(
+                receivedRequest.getPhoneNumber(), null, VelocityGuard.clientIp(request.getHeaders()));
+        if (verdict != VelocityGuard.Verdict.ALLOWED) {
+            context.getLogger().warning("Rejected OTP request: " + verdict);
+            return request.createResponseBuilder(HttpStatus.TOO_MANY_REQUESTS).body("Too many requests").build();
+        }
+
         try {
             OrangeMoneyApi OMapi = new OrangeMoneyApi();
 
             // Assuming getPublicKey() and encryptPin() methods are correctly implemented and accessible
-            OrangeUtils.PublicKeyResponse publicKey = OMapi.getPublicKey();
+            OrangeUtils.PublicKeyResponse publicKey = OMapi.getPublicKey(Priority.INTERACTIVE, deadline);
             String encryptedKey = OrangeUtils.encryptPin(receivedRequest.getPinCode(), publicKey.getKey());
 
             GenerateOTPRequest gOtpRequest = new GenerateOTPRequest();            
@@ -41,7 +50,7 @@ public class OneTimePasswordFunction {
 
             ObjectMapper mapper = new ObjectMapper();
             String jsonRequest = mapper.writeValueAsString(gOtpRequest);
-            String otpResponse = OMapi.callOrangeMoneyApi("api/eWallet/v1/payments/otp", jsonRequest);
+            String otpResponse = OMapi.callOrangeMoneyApi("api/eWallet/v1/payments/otp", jsonRequest, Priority.INTERACTIVE, deadline);
 
             
          // Parse the JSON response
@@ -49,6 +58,9 @@ public class OneTimePasswordFunction {
             String otp = rootNode.path("otp").asText(); 
 
             return request.createResponseBuilder(HttpStatus.OK).body(otp).build();
+        } catch (DeadlineExceededException e) {
+            context.getLogger().warning("OTP request timed out: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.GATEWAY_TIMEOUT).body("Request timed out").build();
         } catch (Exception e) {
             context.getLogger().severe("Error processing payment: " + e.getMessage());
             return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR).body("Error processing payment: " + e.getMessage()).build();
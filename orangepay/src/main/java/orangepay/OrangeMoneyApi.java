@@ -3,15 +3,19 @@ package orangepay;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import orangepay.OrangeUtils.*;
+import orangepay.UpstreamScheduler.Priority;
 
 public class OrangeMoneyApi {
 
@@ -25,10 +29,22 @@ public class OrangeMoneyApi {
     private static final String OM_CLIENT_ID = System.getenv("ORANGE_MONEY_CLIENT_ID");
     private static final String OM_CLIENT_SECRET = System.getenv("ORANGE_MONEY_CLIENT_SECRET");
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    // Shared client so concurrent calls reuse connections. The connect timeout makes
+    // connect-phase timeouts distinguishable from ones after the request went out.
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofMillis(OrangeUtils.envLong("OM_CONNECT_TIMEOUT_MS", 3000)))
+            .build();
+    private static final UpstreamScheduler scheduler = UpstreamScheduler.getDefault();
 
     public static String getToken() throws Exception {
-        
-        HttpClient client = HttpClient.newHttpClient();
+        return getToken(Priority.STANDARD);
+    }
+
+    public static String getToken(Priority priority) throws Exception {
+        return getToken(priority, Deadline.fromConfig());
+    }
+
+    public static String getToken(Priority priority, Deadline deadline) throws Exception {
         String params = "grant_type=client_credentials&client_id=" + OM_CLIENT_ID + "&client_secret="
                 + OM_CLIENT_SECRET;
         HttpRequest request = HttpRequest.newBuilder()
@@ -36,21 +52,28 @@ public class OrangeMoneyApi {
                 .header("Content-Type", "application/x-www-form-urlencoded")
                 .POST(HttpRequest.BodyPublishers.ofString(params))
                 .build();
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = send(request, priority, deadline, false);
 
         if (response.statusCode() == 200) { // Ensure the request was successful
             JsonNode rootNode = objectMapper.readTree(response.body());
             return rootNode.path("access_token").asText();
         } else {
-            throw new RuntimeException("Failed to retrieve token. Status code: " + response.statusCode() + " Response: "
-                    + response.body());
+            throw new OrangeMoneyApiException(response.statusCode(), "Failed to retrieve token. Status code: "
+                    + response.statusCode() + " Response: " + response.body(), null);
         }
     }
 
     public PublicKeyResponse getPublicKey() throws Exception {
-        String token = getToken(); // Retrieve the token internally
+        return getPublicKey(Priority.STANDARD);
+    }
+
+    public PublicKeyResponse getPublicKey(Priority priority) throws Exception {
+        return getPublicKey(priority, Deadline.fromConfig());
+    }
+
+    public PublicKeyResponse getPublicKey(Priority priority, Deadline deadline) throws Exception {
+        String token = getToken(priority, deadline); // Retrieve the token internally
 
-        HttpClient client = HttpClient.newHttpClient();
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(URI.create("https://api.sandbox.orange-sonatel.com/" + "api/account/v1/publicKeys"))
                 .header("Authorization", "Bearer " + token) // Use the token
@@ -58,7 +81,7 @@ public class OrangeMoneyApi {
                 .GET() // Assuming GET request
                 .build();
 
-        HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+        HttpResponse<String> response = send(request, priority, deadline, false);
 
         if (response.statusCode() == 200) {
             // Deserialize the JSON response into PublicKeyResponse object
@@ -66,12 +89,23 @@ public class OrangeMoneyApi {
             return publicKeyResponse; // Or return publicKeyResponse.getKey() to return only the key string
         } else {
             // Handle error responses appropriately
-            throw new RuntimeException("Failed to retrieve public key: Status code " + response.statusCode());
+            throw new OrangeMoneyApiException(response.statusCode(),
+                    "Failed to retrieve public key: Status code " + response.statusCode(), null);
         }
     }
 
     public String callOrangeMoneyApi(String method, String jsonRequest)
             throws IOException, InterruptedException {
+        return callOrangeMoneyApi(method, jsonRequest, Priority.STANDARD);
+    }
+
+    public String callOrangeMoneyApi(String method, String jsonRequest, Priority priority)
+            throws IOException, InterruptedException {
+        return callOrangeMoneyApi(method, jsonRequest, priority, Deadline.fromConfig());
+    }
+
+    public String callOrangeMoneyApi(String method, String jsonRequest, Priority priority, Deadline deadline)
+            throws IOException, InterruptedException {
         // URL from environment variable or hardcoded
 
         if (OM_BASE_ENDPOINT == null || OM_BASE_ENDPOINT.trim().isEmpty()) {
@@ -80,7 +114,7 @@ public class OrangeMoneyApi {
 
         String apiUrl = OM_BASE_ENDPOINT + method;
         try {
-            String token = getToken(); // Assume getToken is implemented in OrangeMoneyApi
+            String token = getToken(priority, deadline); // Assume getToken is implemented in OrangeMoneyApi
             // Prepare and send the HTTP request
             HttpRequest request = HttpRequest.newBuilder()
                     .uri(URI.create(apiUrl))
@@ -89,8 +123,7 @@ public class OrangeMoneyApi {
                     .POST(HttpRequest.BodyPublishers.ofString(jsonRequest))
                     .build();
 
-            HttpClient client = HttpClient.newHttpClient();
-            HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+            HttpResponse<String> response = send(request, priority, deadline, true);
 
             // Check the response status code
             if (response.statusCode() >= 200 && response.statusCode() < 300) {
@@ -98,15 +131,70 @@ public class OrangeMoneyApi {
                 return response.body();
             } else {
                 // Handle non-successful response
-                throw new RuntimeException("Failed to call Orange Money API: Status code " + response.statusCode()
-                        + ", Body: " + response.body());
+                throw new OrangeMoneyApiException(response.statusCode(), "Failed to call Orange Money API: Status code "
+                        + response.statusCode() + ", Body: " + response.body(), null);
             }
+        } catch (OrangeMoneyApiException e) {
+            throw e;
+        } catch (IOException e) {
+            // No response at all: connection failure or timeout, worth retrying
+            throw new OrangeMoneyApiException(0, "Failed to call Orange Money API: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OrangeMoneyApiException(0, "Failed to call Orange Money API: " + e.getMessage(), e);
         } catch (Exception e) {
-            throw new RuntimeException("Failed to call Orange Money API: Status code ");
+            // A local fault such as a bad URL or unreadable response; retrying will not help
+            throw new IllegalStateException("Failed to call Orange Money API: " + e.getMessage(), e);
+        }
+    }
+
+    public String getOrangeMoneyApi(String method, Priority priority) {
+        return getOrangeMoneyApi(method, priority, Deadline.fromConfig());
+    }
+
+    public String getOrangeMoneyApi(String method, Priority priority, Deadline deadline) {
+        String apiUrl = OM_BASE_ENDPOINT + method;
+        try {
+            String token = getToken(priority, deadline);
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(apiUrl))
+                    .header("Authorization", "Bearer " + token)
+                    .GET()
+                    .build();
+
+            HttpResponse<String> response = send(request, priority, deadline, false);
+
+            if (response.statusCode() >= 200 && response.statusCode() < 300) {
+                return response.body();
+            } else {
+                throw new OrangeMoneyApiException(response.statusCode(), "Failed to call Orange Money API: Status code "
+                        + response.statusCode() + ", Body: " + response.body(), null);
+            }
+        } catch (OrangeMoneyApiException e) {
+            throw e;
+        } catch (IOException e) {
+            // No response at all: connection failure or timeout, worth retrying
+            throw new OrangeMoneyApiException(0, "Failed to call Orange Money API: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OrangeMoneyApiException(0, "Failed to call Orange Money API: " + e.getMessage(), e);
+        } catch (Exception e) {
+            // A local fault such as a bad URL or unreadable response; retrying will not help
+            throw new IllegalStateException("Failed to call Orange Money API: " + e.getMessage(), e);
         }
     }
 
     public CompletableFuture<String> callOrangeMoneyApiAsync(String method, String jsonRequest, String token) {
+        return callOrangeMoneyApiAsync(method, jsonRequest, token, Priority.STANDARD);
+    }
+
+    public CompletableFuture<String> callOrangeMoneyApiAsync(String method, String jsonRequest, String token,
+            Priority priority) {
+        return callOrangeMoneyApiAsync(method, jsonRequest, token, priority, Deadline.fromConfig());
+    }
+
+    public CompletableFuture<String> callOrangeMoneyApiAsync(String method, String jsonRequest, String token,
+            Priority priority, Deadline deadline) {
 
         if (method == null || method.trim().isEmpty()) {
             CompletableFuture<String> future = new CompletableFuture<>();
@@ -121,15 +209,18 @@ public class OrangeMoneyApi {
                 .POST(HttpRequest.BodyPublishers.ofString(jsonRequest))
                 .build();
 
-        HttpClient client = HttpClient.newHttpClient();
-
-        return client.sendAsync(request, BodyHandlers.ofString())
+        // Bounding both the queued call and the exchange itself cancels whichever is pending when time runs out
+        CompletableFuture<HttpResponse<String>> call = scheduler.submit(priority,
+                () -> deadline.bound(httpClient.sendAsync(withTimeout(request, deadline), BodyHandlers.ofString())),
+                OrangeMoneyApi::isSuccess);
+        return deadline.bound(call)
                 .thenApply(response -> {
                     if (response.statusCode() >= 200 && response.statusCode() < 300) {
                         return response.body();
                     } else {
-                        throw new RuntimeException("Failed to call Orange Money API: Status code "
-                                + response.statusCode() + ", Body: " + response.body());
+                        throw new OrangeMoneyApiException(response.statusCode(),
+                                "Failed to call Orange Money API: Status code " + response.statusCode()
+                                        + ", Body: " + response.body(), null);
                     }
                 });
     }
@@ -173,6 +264,35 @@ public class OrangeMoneyApi {
         }
     }
 
+    // Every upstream call goes through the scheduler so lanes share one budget.
+    // Only a timeout on the final call of an operation with side effects, such as
+    // the payment POST, leaves its outcome unknown; token, public key and lookup
+    // timeouts are reported as not sent so the caller can safely retry.
+    private static HttpResponse<String> send(HttpRequest request, Priority priority, Deadline deadline,
+            boolean sideEffects) throws Exception {
+        return scheduler.execute(priority, deadline, () -> {
+            try {
+                return httpClient.send(withTimeout(request, deadline), BodyHandlers.ofString());
+            } catch (HttpConnectTimeoutException e) {
+                throw new DeadlineExceededException(false, "Deadline exceeded connecting to " + request.uri().getPath(), e);
+            } catch (HttpTimeoutException e) {
+                throw new DeadlineExceededException(sideEffects, "Deadline exceeded waiting for " + request.uri().getPath(), e);
+            }
+        }, OrangeMoneyApi::isSuccess);
+    }
+
+    // Non-2xx responses count as failures in the scheduler's lane metrics
+    private static boolean isSuccess(HttpResponse<String> response) {
+        return response.statusCode() >= 200 && response.statusCode() < 300;
+    }
+
+    // Per-request timeout from whatever is left of the deadline once the call is about to start
+    private static HttpRequest withTimeout(HttpRequest request, Deadline deadline) {
+        return HttpRequest.newBuilder(request, (name, value) -> true)
+                .timeout(deadline.remaining(request.uri().getPath()))
+                .build();
+    }
+
     private String convertRequestToJson(GenerateOTPRequest request) throws Exception {
         ObjectMapper mapper = new ObjectMapper(); // Jackson's ObjectMapper
         return mapper.writeValueAsString(request);
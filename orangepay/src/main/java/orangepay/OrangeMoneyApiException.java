@@ -0,0 +1,26 @@
+package orangepay;
+
+/**
+ * Thrown when an Orange Money API call fails. Carries the upstream status
+ * code, or 0 when no response was received (connection error or timeout).
+ */
+public class OrangeMoneyApiException extends RuntimeException {
+
+    private final int statusCode;
+
+    public OrangeMoneyApiException(int statusCode, String message, Throwable cause) {
+        super(message, cause);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Whether the request may not have been processed upstream and is worth retrying.
+     */
+    public boolean isRetryable() {
+        return statusCode == 0 || statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+}
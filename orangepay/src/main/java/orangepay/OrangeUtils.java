@@ -8,6 +8,7 @@ import java.util.Map;
 
 import javax.crypto.Cipher;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
@@ -67,12 +68,12 @@ public class OrangeUtils {
         public String reference;
     }
 
-    public class MoneyReq {
+    public static class MoneyReq {
         public double amount; // Adjust the type if needed
         public String currency; // Assuming currency is part of the amount object, adjust as per actual API
     }
 
-    public class GenerateQRCodeRequest {
+    public static class GenerateQRCodeRequest {
         public OrangeUtils.MoneyReq amount;
         public String callbackCancelUrl;
         public String callbackSuccessUrl;
@@ -83,17 +84,20 @@ public class OrangeUtils {
 
         // You might want to add a method to validate the request object, including the
         // metadata size
+        @JsonIgnore
         public boolean isValid() {
             if (metadata != null && metadata.size() > 10) {
                 return false; // Invalid if more than 10 metadata entries
             }
+            if (code == null || !code.matches("\\d{6}")) {
+                return false; // Merchant code is required and must be six digits
+            }
             // Add other validation logic as necessary
             return true;
         }
 
         public String getCode() {
-            // TODO Auto-generated method stub
-            throw new UnsupportedOperationException("Unimplemented method 'getCode'");
+            return code;
         }
     }
 
@@ -214,6 +218,22 @@ public class OrangeUtils {
     }
 
 
+    /**
+     * Reads a numeric setting from the environment, falling back to the default
+     * when it is missing or malformed.
+     */
+    public static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public static String encryptPin(String pin, String publicKeyStr) {
             try {
                 // Convert public key string to PublicKey object
@@ -0,0 +1,366 @@
+package orangepay;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * In-memory per-partner transaction rollups.
+ *
+ * Each (partner ID, endpoint) pair keeps a ring of per-minute buckets for the
+ * last hour and a ring of per-hour buckets for the last day. Counters are
+ * {@link LongAdder}s and latencies go into a log-scale histogram that spreads
+ * contended updates over extra stripes, so recording a payment never takes a
+ * lock in the common case.
+ *
+ * Series idle for longer than a day hold nothing a query can return and are
+ * dropped; when the cap is reached the least recently updated series make
+ * room for new ones. Eviction runs on a background thread, so the map may
+ * briefly hold more than {@code maxSeries} series, but never twice as many.
+ */
+public class PaymentAnalytics {
+
+    /**
+     * Aggregated figures for one partner and endpoint over a query window.
+     */
+    public static class Rollup {
+        public String partnerId;
+        public String endpoint;
+        public long count;
+        public long failures;
+        public double amount; // Sum of successful payments only
+        public long p50LatencyMillis;
+        public long p95LatencyMillis;
+        public long p99LatencyMillis;
+    }
+
+    public static final int MINUTE_BUCKETS = 60;
+    public static final int HOUR_BUCKETS = 24;
+
+    // Two bins per power of two, from 1 ms up to about 65 s
+    private static final int LATENCY_BINS = 34;
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long IDLE_MINUTES = TimeUnit.HOURS.toMinutes(HOUR_BUCKETS);
+    private static final int STRIPES = 8;
+
+    private static final ExecutorService evictor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "payment-analytics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final PaymentAnalytics DEFAULT = new PaymentAnalytics(
+            (int) OrangeUtils.envLong("ANALYTICS_MAX_SERIES", 4096));
+
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    private final int maxSeries;
+    private final AtomicBoolean evictionPending = new AtomicBoolean();
+
+    public PaymentAnalytics(int maxSeries) {
+        this.maxSeries = maxSeries;
+    }
+
+    /**
+     * Rollups shared by all functions in this app.
+     */
+    public static PaymentAnalytics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Records one payment attempt. Once {@code maxSeries} partner/endpoint pairs
+     * are being tracked, a new pair schedules eviction of idle or least recently
+     * updated ones.
+     */
+    public void record(String partnerId, String endpoint, double amount, long latencyMillis, boolean success) {
+        if (partnerId == null || partnerId.isEmpty()) {
+            partnerId = "unknown";
+        }
+        long now = System.currentTimeMillis();
+        long minute = now / MINUTE_MILLIS;
+        String key = partnerId + '|' + endpoint;
+        Series target = series.get(key);
+        if (target == null) {
+            int size = series.size();
+            if (size >= maxSeries) {
+                scheduleEviction();
+                if (size >= 2 * maxSeries) {
+                    return; // Eviction is behind; drop rather than grow without bound
+                }
+            }
+            final String id = partnerId;
+            target = series.computeIfAbsent(key, k -> new Series(id, endpoint, minute));
+        }
+
+        // Written at most once a minute per series, so it is not a contention point
+        if (target.lastMinute != minute) {
+            target.lastMinute = minute;
+        }
+        long amountMinor = Math.round(amount * 100);
+        int bin = latencyBin(latencyMillis);
+        target.minutes.bucket(minute).add(amountMinor, bin, success);
+        target.hours.bucket(now / HOUR_MILLIS).add(amountMinor, bin, success);
+    }
+
+    /**
+     * Records a one-step payment request body, timed from {@code startNanos}.
+     */
+    public void recordPayment(JsonNode payment, String endpoint, long startNanos, boolean success) {
+        record(payment.path("partner").path("id").asText(null),
+                endpoint,
+                payment.path("amount").path("value").asDouble(),
+                (System.nanoTime() - startNanos) / 1_000_000,
+                success);
+    }
+
+    /**
+     * Returns rollups for the last {@code minutes} minutes (at most an hour),
+     * optionally restricted to one partner.
+     */
+    public List<Rollup> lastMinutes(int minutes, String partnerId) {
+        return query(Math.min(Math.max(1, minutes), MINUTE_BUCKETS), MINUTE_MILLIS, partnerId, true);
+    }
+
+    /**
+     * Returns rollups for the last {@code hours} hours (at most a day),
+     * optionally restricted to one partner.
+     */
+    public List<Rollup> lastHours(int hours, String partnerId) {
+        return query(Math.min(Math.max(1, hours), HOUR_BUCKETS), HOUR_MILLIS, partnerId, false);
+    }
+
+    private List<Rollup> query(int buckets, long bucketMillis, String partnerId, boolean byMinute) {
+        long current = System.currentTimeMillis() / bucketMillis;
+        List<Rollup> rollups = new ArrayList<>();
+        for (Series s : series.values()) {
+            if (partnerId != null && !partnerId.equals(s.partnerId)) {
+                continue;
+            }
+            Rollup rollup = new Rollup();
+            rollup.partnerId = s.partnerId;
+            rollup.endpoint = s.endpoint;
+            long amountMinor = 0;
+            long[] histogram = new long[LATENCY_BINS];
+            Ring ring = byMinute ? s.minutes : s.hours;
+            for (long epoch = current - buckets + 1; epoch <= current; epoch++) {
+                Bucket bucket = ring.peek(epoch);
+                if (bucket == null) {
+                    continue;
+                }
+                rollup.count += bucket.count.sum();
+                rollup.failures += bucket.failures.sum();
+                amountMinor += bucket.amountMinor.sum();
+                bucket.latency.addTo(histogram);
+            }
+            if (rollup.count == 0) {
+                continue;
+            }
+            rollup.amount = amountMinor / 100.0;
+            rollup.p50LatencyMillis = quantile(histogram, rollup.count, 0.50);
+            rollup.p95LatencyMillis = quantile(histogram, rollup.count, 0.95);
+            rollup.p99LatencyMillis = quantile(histogram, rollup.count, 0.99);
+            rollups.add(rollup);
+        }
+        return rollups;
+    }
+
+    private void scheduleEviction() {
+        if (evictionPending.compareAndSet(false, true)) {
+            evictor.execute(() -> {
+                try {
+                    evict(System.currentTimeMillis() / MINUTE_MILLIS);
+                } finally {
+                    evictionPending.set(false);
+                }
+                // Series added while the pass ran may have pushed the map over the cap again
+                if (series.size() > maxSeries) {
+                    scheduleEviction();
+                }
+            });
+        }
+    }
+
+    // Drops series idle for a day, then the least recently updated ones until
+    // there is room again; a little below the cap so every new series does not
+    // trigger another pass
+    private void evict(long minute) {
+        List<Map.Entry<String, Series>> live = new ArrayList<>();
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            if (minute - entry.getValue().lastMinute > IDLE_MINUTES) {
+                series.remove(entry.getKey(), entry.getValue());
+            } else {
+                live.add(entry);
+            }
+        }
+        int target = maxSeries - Math.max(1, maxSeries / 16);
+        if (live.size() <= target) {
+            return;
+        }
+        live.sort(Comparator.comparingLong(entry -> entry.getValue().lastMinute));
+        for (int i = 0; i < live.size() - target; i++) {
+            series.remove(live.get(i).getKey(), live.get(i).getValue());
+        }
+    }
+
+    private static int latencyBin(long millis) {
+        if (millis < 1) {
+            return 0;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(millis);
+        int half = octave == 0 ? 0 : (int) (millis >>> (octave - 1)) & 1;
+        return Math.min(LATENCY_BINS - 1, 1 + 2 * octave + half);
+    }
+
+    // Upper bound of the bin, which is what a quantile estimate can promise
+    private static long binUpperMillis(int bin) {
+        if (bin == 0) {
+            return 1;
+        }
+        int octave = (bin - 1) / 2;
+        return (bin - 1) % 2 == 0 ? (3L << octave) / 2 : 2L << octave;
+    }
+
+    private static long quantile(long[] histogram, long count, double q) {
+        long rank = (long) Math.ceil(count * q);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return binUpperMillis(i);
+            }
+        }
+        return binUpperMillis(histogram.length - 1);
+    }
+
+    private static class Series {
+        final String partnerId;
+        final String endpoint;
+        final Ring minutes = new Ring(MINUTE_BUCKETS);
+        final Ring hours = new Ring(HOUR_BUCKETS);
+        volatile long lastMinute;
+
+        Series(String partnerId, String endpoint, long minute) {
+            this.partnerId = partnerId;
+            this.endpoint = endpoint;
+            this.lastMinute = minute;
+        }
+    }
+
+    private static class Ring {
+        final Bucket[] buckets;
+
+        Ring(int size) {
+            buckets = new Bucket[size];
+            for (int i = 0; i < size; i++) {
+                buckets[i] = new Bucket();
+            }
+        }
+
+        // Returns the slot for the epoch, recycling it if it still holds an older one
+        Bucket bucket(long epoch) {
+            Bucket bucket = buckets[(int) (epoch % buckets.length)];
+            if (bucket.epoch != epoch) {
+                synchronized (bucket) {
+                    if (bucket.epoch < epoch) {
+                        bucket.reset(epoch);
+                    }
+                }
+            }
+            return bucket;
+        }
+
+        Bucket peek(long epoch) {
+            Bucket bucket = buckets[(int) (epoch % buckets.length)];
+            return bucket.epoch == epoch ? bucket : null;
+        }
+    }
+
+    private static class Bucket {
+        volatile long epoch = -1;
+        final LongAdder count = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder amountMinor = new LongAdder();
+        final Histogram latency = new Histogram();
+
+        void add(long amount, int latencyBin, boolean success) {
+            count.increment();
+            if (success) {
+                amountMinor.add(amount);
+            } else {
+                failures.increment();
+            }
+            latency.increment(latencyBin);
+        }
+
+        void reset(long newEpoch) {
+            count.reset();
+            failures.reset();
+            amountMinor.reset();
+            latency.reset();
+            epoch = newEpoch;
+        }
+    }
+
+    // Latency bins with one shared stripe, plus extra stripes created the first
+    // time threads collide on a bin, much like a LongAdder per bin but without
+    // paying for one on every bucket that is never contended
+    private static class Histogram {
+        final AtomicLongArray base = new AtomicLongArray(LATENCY_BINS);
+        final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+        void increment(int bin) {
+            long value = base.get(bin);
+            if (base.compareAndSet(bin, value, value + 1)) {
+                return;
+            }
+            int hash = Thread.currentThread().hashCode();
+            int index = (hash ^ (hash >>> 16)) & (STRIPES - 1);
+            AtomicLongArray stripe = stripes.get(index);
+            if (stripe == null) {
+                stripes.compareAndSet(index, null, new AtomicLongArray(LATENCY_BINS));
+                stripe = stripes.get(index);
+            }
+            stripe.incrementAndGet(bin);
+        }
+
+        void addTo(long[] histogram) {
+            for (int i = 0; i < LATENCY_BINS; i++) {
+                histogram[i] += base.get(i);
+            }
+            for (int s = 0; s < STRIPES; s++) {
+                AtomicLongArray stripe = stripes.get(s);
+                if (stripe != null) {
+                    for (int i = 0; i < LATENCY_BINS; i++) {
+                        histogram[i] += stripe.get(i);
+                    }
+                }
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < LATENCY_BINS; i++) {
+                base.set(i, 0);
+            }
+            for (int s = 0; s < STRIPES; s++) {
+                AtomicLongArray stripe = stripes.get(s);
+                if (stripe != null) {
+                    for (int i = 0; i < LATENCY_BINS; i++) {
+                        stripe.set(i, 0);
+                    }
+                }
+            }
+        }
+    }
+}
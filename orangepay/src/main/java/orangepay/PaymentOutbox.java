@@ -0,0 +1,647 @@
+package orangepay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+
+import orangepay.UpstreamScheduler.Priority;
+
+/**
+ * Durable outbox for payment submissions that failed or timed out upstream.
+ *
+ * Entries are kept in an append-only journal ({@code outbox.log}, one JSON
+ * record per line) that is compacted once it holds mostly finished entries.
+ * A background thread replays due entries in small batches on the bulk lane,
+ * paced so it never competes with live traffic. Before resubmitting, each
+ * entry's reference is looked up upstream so a payment that did go through is
+ * not charged twice. Failed resubmissions back off exponentially until
+ * {@code OUTBOX_MAX_ATTEMPTS} is reached; an entry whose status cannot be
+ * looked up is never given up on, since it may already have been paid.
+ *
+ * The outbox only runs when {@code OUTBOX_DIR} points at persistent storage;
+ * its files are readable by the owner alone. Each host instance keeps its
+ * journal in its own subdirectory, named by {@code WEBSITE_INSTANCE_ID}, and
+ * holds an exclusive lock on it while running, so instances sharing
+ * {@code %HOME%} never replay or compact each other's entries. Journals left by
+ * instances that are gone (their lock is free) are merged into a running one
+ * at startup. The customer's OTP is encrypted
+ * with {@code OUTBOX_KEY} (a Base64 AES key) before it is written, or left out
+ * of the stored request when no key is configured, in which case only payments
+ * found upstream can be closed and the rest are rejected on resubmission.
+ */
+public class PaymentOutbox {
+
+    private static final Logger logger = Logger.getLogger(PaymentOutbox.class.getName());
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final String JOURNAL = "outbox.log";
+    private static final String LOCK = "outbox.lock";
+    private static final String SEALED_PREFIX = "enc:";
+    private static final int GCM_IV_BYTES = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * One journal record. {@code type} is ADD, RETRY, DONE or DEAD.
+     */
+    public static class Record {
+        public String type;
+        public String id;
+        public String method;
+        public String body;
+        public String reference;
+        public int attempts;
+        public long nextAttemptMillis;
+        public String lastError;
+    }
+
+    /**
+     * Outcome of looking a reference up upstream.
+     */
+    private enum UpstreamStatus {
+        SUCCEEDED, PENDING, ABSENT
+    }
+
+    private static class Holder {
+        static final PaymentOutbox DEFAULT = createDefault();
+    }
+
+    private final Path journalPath;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final boolean posix;
+    private final SecretKey otpKey;
+    private final OrangeMoneyApi orangeMoneyApi;
+    private final int batchSize;
+    private final long replayIntervalMillis;
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+
+    // Guarded by this
+    private final Map<String, Record> pending = new LinkedHashMap<>();
+    private FileChannel journal;
+    private long journalRecords;
+
+    private ScheduledExecutorService replayer;
+
+    /**
+     * @param otpKey AES key used to encrypt stored OTPs, or null to drop them
+     */
+    public PaymentOutbox(Path directory, SecretKey otpKey, OrangeMoneyApi orangeMoneyApi, int batchSize,
+            double replaysPerSecond, int maxAttempts, long baseBackoffMillis, long maxBackoffMillis)
+            throws IOException {
+        this.posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(ownerOnly));
+            Files.setPosixFilePermissions(directory, ownerOnly);
+        } else {
+            Files.createDirectories(directory);
+        }
+        this.journalPath = directory.resolve(JOURNAL);
+        this.lockChannel = open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = tryLock(lockChannel);
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Payment outbox in " + directory + " is already open in another process");
+        }
+        this.otpKey = otpKey;
+        this.orangeMoneyApi = orangeMoneyApi;
+        this.batchSize = Math.max(1, batchSize);
+        this.replayIntervalMillis = (long) (1000 / Math.max(0.01, replaysPerSecond));
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        load();
+        this.journal = openJournal();
+        // Terminate a torn last line so the next record starts cleanly
+        if (journal.size() > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            try (FileChannel in = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+                in.read(last, in.size() - 1);
+            }
+            if (last.get(0) != '\n') {
+                journal.write(ByteBuffer.wrap(new byte[] { '\n' }));
+            }
+        }
+    }
+
+    /**
+     * Outbox shared by the payment functions, opened when they are loaded and
+     * by the standalone server at startup. Returns null when {@code OUTBOX_DIR}
+     * is not set or the outbox cannot be opened.
+     */
+    public static PaymentOutbox getDefault() {
+        return Holder.DEFAULT;
+    }
+
+    // Never throws: an exception here would surface as ExceptionInInitializerError
+    private static PaymentOutbox createDefault() {
+        String directory = System.getenv("OUTBOX_DIR");
+        if (directory == null || directory.isBlank()) {
+            logger.warning("OUTBOX_DIR is not set; failed payments will not be queued for replay");
+            return null;
+        }
+        try {
+            SecretKey otpKey = null;
+            String key = System.getenv("OUTBOX_KEY");
+            if (key != null && !key.isBlank()) {
+                byte[] keyBytes = Base64.getDecoder().decode(key.trim());
+                if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+                    throw new IllegalArgumentException("OUTBOX_KEY must be a Base64 128, 192 or 256-bit AES key");
+                }
+                otpKey = new SecretKeySpec(keyBytes, "AES");
+            } else {
+                logger.warning("OUTBOX_KEY is not set; OTPs will not be stored with queued payments");
+            }
+            String instance = System.getenv("WEBSITE_INSTANCE_ID");
+            Path root = Paths.get(directory);
+            Path own = root.resolve(instance != null && !instance.isBlank() ? instance : "default");
+            PaymentOutbox outbox = new PaymentOutbox(own, otpKey, new OrangeMoneyApi(),
+                    (int) OrangeUtils.envLong("OUTBOX_BATCH_SIZE", 20),
+                    OrangeUtils.envLong("OUTBOX_REPLAYS_PER_SECOND", 2),
+                    (int) OrangeUtils.envLong("OUTBOX_MAX_ATTEMPTS", 8),
+                    OrangeUtils.envLong("OUTBOX_BASE_BACKOFF_MS", 5000),
+                    OrangeUtils.envLong("OUTBOX_MAX_BACKOFF_MS", TimeUnit.MINUTES.toMillis(15)));
+            outbox.adoptOrphans(root);
+            outbox.start(OrangeUtils.envLong("OUTBOX_POLL_SECONDS", 5));
+            return outbox;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to open payment outbox in " + directory, e);
+            return null;
+        }
+    }
+
+    /**
+     * Hands a payment whose outcome upstream is unknown to the default outbox
+     * and builds the 202 response. Returns null when the payment cannot be
+     * queued, in which case the caller answers with its usual error.
+     */
+    public static HttpResponseMessage queuePayment(HttpRequestMessage<?> request, String method, String jsonRequest,
+            JsonNode rootNode, Exception error, ExecutionContext context) {
+        String reference = rootNode.path("reference").asText(null);
+        if (reference == null || reference.isEmpty()) {
+            return null; // Without a reference we cannot check upstream before replaying
+        }
+        try {
+            PaymentOutbox outbox = getDefault();
+            if (outbox == null) {
+                return null;
+            }
+            String outboxId = outbox.enqueue(method, jsonRequest, reference, error.getMessage());
+            ObjectNode body = objectMapper.createObjectNode();
+            body.put("status", "PENDING");
+            body.put("reference", reference);
+            body.put("outboxId", outboxId);
+            return request.createResponseBuilder(HttpStatus.ACCEPTED)
+                    .header("Content-Type", "application/json")
+                    .body(objectMapper.writeValueAsString(body))
+                    .build();
+        } catch (Exception | LinkageError e) {
+            context.getLogger().severe("Failed to queue payment for replay: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Durably stores a failed submission for replay and returns its outbox ID.
+     * The record is flushed to disk before this returns.
+     */
+    public synchronized String enqueue(String method, String jsonRequest, String reference, String error)
+            throws IOException {
+        Record record = new Record();
+        record.type = "ADD";
+        record.id = UUID.randomUUID().toString();
+        record.method = method;
+        record.body = sealOtp(jsonRequest);
+        record.reference = reference;
+        record.nextAttemptMillis = System.currentTimeMillis() + baseBackoffMillis;
+        record.lastError = error;
+        append(record);
+        pending.put(record.id, record);
+        return record.id;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Starts the background replayer, polling for due entries every {@code pollSeconds}.
+     */
+    public synchronized void start(long pollSeconds) {
+        if (replayer != null) {
+            return;
+        }
+        replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "payment-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayer.scheduleWithFixedDelay(this::replayDue, pollSeconds, Math.max(1, pollSeconds), TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = replayer;
+            replayer = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Stops replaying and releases the journal and its lock, so another process may take over.
+     */
+    public void close() throws IOException {
+        stop();
+        synchronized (this) {
+            journal.close();
+            lockChannel.close(); // Releases the lock
+        }
+    }
+
+    private void replayDue() {
+        if (!lock.isValid()) {
+            logger.severe("Payment outbox lock lost; not replaying");
+            return;
+        }
+        try {
+            List<Record> batch = dueBatch();
+            for (Record record : batch) {
+                replay(record);
+                Thread.sleep(replayIntervalMillis); // Pace replays so live traffic keeps the budget
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Outbox replay pass failed", e);
+        }
+    }
+
+    private synchronized List<Record> dueBatch() {
+        long now = System.currentTimeMillis();
+        List<Record> due = new ArrayList<>();
+        for (Record record : pending.values()) {
+            if (record.nextAttemptMillis <= now) {
+                due.add(record);
+            }
+        }
+        due.sort(Comparator.comparingLong(r -> r.nextAttemptMillis));
+        return due.size() > batchSize ? new ArrayList<>(due.subList(0, batchSize)) : due;
+    }
+
+    private void replay(Record record) throws IOException {
+        UpstreamStatus status;
+        try {
+            status = lookup(record.reference);
+        } catch (Exception e) {
+            // Even a 4xx here says nothing about the payment itself, so keep it
+            retry(record, "Status lookup failed: " + e.getMessage(), false);
+            return;
+        }
+        try {
+            if (status == UpstreamStatus.SUCCEEDED) {
+                finish(record, "DONE", null);
+                return;
+            }
+            if (status == UpstreamStatus.PENDING) {
+                retry(record, "Upstream still processing", true);
+                return;
+            }
+            String body;
+            try {
+                body = unsealOtp(record.body);
+            } catch (GeneralSecurityException e) {
+                finish(record, "DEAD", "Cannot decrypt stored OTP, was OUTBOX_KEY changed?");
+                return;
+            }
+            orangeMoneyApi.callOrangeMoneyApi(record.method, body, Priority.BULK);
+            finish(record, "DONE", null);
+        } catch (OrangeMoneyApiException e) {
+            if (e.isRetryable()) {
+                retry(record, e.getMessage(), true);
+            } else {
+                finish(record, "DEAD", e.getMessage()); // Resubmission rejected upstream, e.g. expired OTP
+            }
+        } catch (Exception e) {
+            retry(record, e.getMessage(), true);
+        }
+    }
+
+    // Looks the payment up by reference so we never resubmit one that went through.
+    // Only transactions carrying exactly our reference count.
+    private UpstreamStatus lookup(String reference) throws Exception {
+        if (reference == null || reference.isEmpty()) {
+            return UpstreamStatus.ABSENT;
+        }
+        String response = orangeMoneyApi.getOrangeMoneyApi(
+                "api/eWallet/v1/transactions?reference=" + URLEncoder.encode(reference, StandardCharsets.UTF_8),
+                Priority.BULK);
+        JsonNode rootNode = objectMapper.readTree(response);
+        JsonNode transactions = rootNode.isArray() ? rootNode : rootNode.path("content");
+        UpstreamStatus result = UpstreamStatus.ABSENT;
+        for (JsonNode transaction : transactions) {
+            if (!reference.equals(transaction.path("reference").asText(null))) {
+                continue;
+            }
+            String status = transaction.path("status").asText();
+            if ("SUCCESS".equals(status)) {
+                return UpstreamStatus.SUCCEEDED;
+            }
+            if ("PENDING".equals(status) || "INITIATED".equals(status) || "PRE_INITIATED".equals(status)) {
+                result = UpstreamStatus.PENDING;
+            }
+        }
+        return result;
+    }
+
+    private synchronized void retry(Record record, String error, boolean mayGiveUp) throws IOException {
+        int attempts = record.attempts + 1;
+        if (mayGiveUp && attempts >= maxAttempts) {
+            finish(record, "DEAD", error);
+            return;
+        }
+        long backoff = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempts, 20));
+        long jitter = ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+
+        Record update = new Record();
+        update.type = "RETRY";
+        update.id = record.id;
+        update.attempts = attempts;
+        update.nextAttemptMillis = System.currentTimeMillis() + backoff + jitter;
+        update.lastError = error;
+        append(update);
+        record.attempts = update.attempts;
+        record.nextAttemptMillis = update.nextAttemptMillis;
+        record.lastError = error;
+    }
+
+    private synchronized void finish(Record record, String type, String error) throws IOException {
+        Record update = new Record();
+        update.type = type;
+        update.id = record.id;
+        update.reference = record.reference;
+        update.lastError = error;
+        append(update);
+        pending.remove(record.id);
+        if ("DEAD".equals(type)) {
+            logger.severe("Giving up on outbox payment " + record.reference + ": " + error);
+        }
+        // Rewrite the journal once finished entries dominate it
+        if (journalRecords > 1000 && journalRecords > 4L * pending.size()) {
+            compact();
+        }
+    }
+
+    private void append(Record record) throws IOException {
+        byte[] line = (objectMapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        journal.force(false);
+        journalRecords++;
+    }
+
+    private void compact() throws IOException {
+        Path temp = journalPath.resolveSibling(JOURNAL + ".tmp");
+        try (FileChannel out = open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Record record : pending.values()) {
+                Record snapshot = copy(record);
+                snapshot.type = "ADD";
+                out.write(ByteBuffer.wrap((objectMapper.writeValueAsString(snapshot) + "\n")
+                        .getBytes(StandardCharsets.UTF_8)));
+            }
+            out.force(true);
+        }
+        journal.close();
+        try {
+            Files.move(temp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journalRecords = pending.size();
+        } finally {
+            // Keep appending to whichever journal is in place, even if the move failed
+            journal = openJournal();
+        }
+    }
+
+    /**
+     * Merges the journals of other instances under {@code root} whose lock is
+     * free, i.e. whose process is gone, into this outbox. Each entry is written
+     * to this journal before the other one is removed.
+     */
+    public void adoptOrphans(Path root) throws IOException {
+        Path own = journalPath.getParent().toAbsolutePath().normalize();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path directory : directories) {
+                if (directory.toAbsolutePath().normalize().equals(own)
+                        || !Files.exists(directory.resolve(JOURNAL))) {
+                    continue;
+                }
+                try (FileChannel orphanLock = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    FileLock held = tryLock(orphanLock);
+                    if (held == null) {
+                        continue; // Still owned by a live instance
+                    }
+                    Map<String, Record> orphans = new LinkedHashMap<>();
+                    readJournal(directory.resolve(JOURNAL), orphans);
+                    synchronized (this) {
+                        for (Record record : orphans.values()) {
+                            if (pending.containsKey(record.id)) {
+                                continue;
+                            }
+                            Record adopted = copy(record);
+                            adopted.type = "ADD";
+                            append(adopted);
+                            pending.put(adopted.id, adopted);
+                        }
+                    }
+                    Files.delete(directory.resolve(JOURNAL));
+                    held.release();
+                    if (!orphans.isEmpty()) {
+                        logger.info("Adopted " + orphans.size() + " pending payments from " + directory);
+                    }
+                }
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        journalRecords += readJournal(journalPath, pending);
+        if (!pending.isEmpty()) {
+            logger.info("Loaded " + pending.size() + " pending payments from outbox");
+        }
+    }
+
+    // Replays a journal into {@code pending} and returns the number of readable records
+    private static long readJournal(Path path, Map<String, Record> pending) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long records = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                Record record;
+                try {
+                    record = objectMapper.readValue(line, Record.class);
+                } catch (IOException e) {
+                    // A torn final line from a crash mid-write; everything before it is intact
+                    logger.warning("Skipping unreadable outbox record");
+                    continue;
+                }
+                records++;
+                if ("ADD".equals(record.type)) {
+                    pending.put(record.id, record);
+                } else if ("RETRY".equals(record.type)) {
+                    Record existing = pending.get(record.id);
+                    if (existing != null) {
+                        existing.attempts = record.attempts;
+                        existing.nextAttemptMillis = record.nextAttemptMillis;
+                        existing.lastError = record.lastError;
+                    }
+                } else {
+                    pending.remove(record.id);
+                }
+            }
+        }
+        return records;
+    }
+
+    // Null when another process, or another outbox in this one, holds the lock
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Opens a journal file readable by the owner only, tightening files left by older versions
+    private FileChannel open(Path path, StandardOpenOption... options) throws IOException {
+        Set<StandardOpenOption> optionSet = EnumSet.of(options[0], options);
+        if (!posix) {
+            return FileChannel.open(path, optionSet);
+        }
+        Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rw-------");
+        FileAttribute<?> attribute = PosixFilePermissions.asFileAttribute(ownerOnly);
+        FileChannel channel = FileChannel.open(path, optionSet, attribute);
+        Files.setPosixFilePermissions(path, ownerOnly);
+        return channel;
+    }
+
+    // Encrypts customer.otp in a request body, or drops it when there is no key
+    private String sealOtp(String jsonRequest) throws IOException {
+        JsonNode rootNode = objectMapper.readTree(jsonRequest);
+        JsonNode customer = rootNode.path("customer");
+        if (!customer.isObject() || !customer.has("otp")) {
+            return jsonRequest;
+        }
+        ObjectNode customerNode = (ObjectNode) customer;
+        if (otpKey == null) {
+            customerNode.remove("otp");
+        } else {
+            try {
+                byte[] iv = new byte[GCM_IV_BYTES];
+                random.nextBytes(iv);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, otpKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+                byte[] sealed = cipher.doFinal(customer.path("otp").asText().getBytes(StandardCharsets.UTF_8));
+                byte[] payload = ByteBuffer.allocate(iv.length + sealed.length).put(iv).put(sealed).array();
+                customerNode.put("otp", SEALED_PREFIX + Base64.getEncoder().encodeToString(payload));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to encrypt OTP: " + e.getMessage(), e);
+            }
+        }
+        return objectMapper.writeValueAsString(rootNode);
+    }
+
+    private String unsealOtp(String body) throws IOException, GeneralSecurityException {
+        JsonNode rootNode = objectMapper.readTree(body);
+        JsonNode otp = rootNode.path("customer").path("otp");
+        if (!otp.isTextual() || !otp.asText().startsWith(SEALED_PREFIX)) {
+            return body;
+        }
+        if (otpKey == null) {
+            throw new GeneralSecurityException("No OUTBOX_KEY configured");
+        }
+        byte[] payload = Base64.getDecoder().decode(otp.asText().substring(SEALED_PREFIX.length()));
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, otpKey, new GCMParameterSpec(GCM_TAG_BITS, payload, 0, GCM_IV_BYTES));
+        byte[] plain = cipher.doFinal(payload, GCM_IV_BYTES, payload.length - GCM_IV_BYTES);
+        ((ObjectNode) rootNode.path("customer")).put("otp", new String(plain, StandardCharsets.UTF_8));
+        return objectMapper.writeValueAsString(rootNode);
+    }
+
+    private static Record copy(Record record) {
+        Record copy = new Record();
+        copy.id = record.id;
+        copy.method = record.method;
+        copy.body = record.body;
+        copy.reference = record.reference;
+        copy.attempts = record.attempts;
+        copy.nextAttemptMillis = record.nextAttemptMillis;
+        copy.lastError = record.lastError;
+        return copy;
+    }
+}
@@ -12,6 +12,7 @@ import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.HttpTrigger;
 
 import orangepay.OrangeUtils.*;
+import orangepay.UpstreamScheduler.Priority;
 
 /**
  * Azure Function with HTTP Trigger for generating QR Code via Orange Money API.
@@ -29,6 +30,7 @@ public class QRCodeFunction {
             final ExecutionContext context) {
                 
         context.getLogger().info("Java HTTP trigger processed a request to generate QR code.");
+        Deadline deadline = Deadline.fromHeaders(request.getHeaders());
 
         // Check if request body is present
         if (!request.getBody().isPresent()) {
@@ -49,11 +51,13 @@ public class QRCodeFunction {
 
         OrangeMoneyApi orangeMoneyApi = new OrangeMoneyApi();
         try {
-            String qrCodeResponse = orangeMoneyApi.callOrangeMoneyApi("api/eWallet/v4/qrcode", jsonRequest);
+            String qrCodeResponse = orangeMoneyApi.callOrangeMoneyApi("api/eWallet/v4/qrcode", jsonRequest, Priority.STANDARD, deadline);
             
             // Wait for the CompletableFuture to complete and return the result
             String responseBody = qrCodeResponse; // Use join() to wait without throwing checked exceptions
             return request.createResponseBuilder(HttpStatus.OK).body(responseBody).build();
+        } catch (DeadlineExceededException e) {
+            return request.createResponseBuilder(HttpStatus.GATEWAY_TIMEOUT).body("Request timed out").build();
         } catch (Exception e) {
             return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR).body("Error calling Orange Money API: " + e.getMessage()).build();
         }
@@ -67,7 +71,7 @@ public class QRCodeFunction {
 private boolean isValidQRCodeRequest(GenerateQRCodeRequest qrRequest) {
     // Add your validation logic here
     // Example validation: check if the QR code request fields are not null or empty
-    return qrRequest != null && qrRequest.getCode() != null && !qrRequest.getCode().isEmpty();
+    return qrRequest != null && qrRequest.isValid();
     // Extend this method to include other validation rules as necessary
 }
 
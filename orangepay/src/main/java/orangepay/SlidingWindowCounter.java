@@ -0,0 +1,115 @@
+package orangepay;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free sliding-window counter keyed by string.
+ *
+ * Counts are kept in a count-min sketch: each key maps to one row of buckets
+ * in each of {@code DEPTH} tables, and its count is the smallest of the row
+ * totals. Memory stays bounded no matter how many distinct keys are seen, and
+ * nothing is ever evicted. Keys that collide share counts, so a collision can
+ * only over-count and the guard built on top of this fails closed. Rows are
+ * picked with a per-instance random seed, so colliding keys cannot be worked
+ * out offline.
+ */
+public class SlidingWindowCounter {
+
+    private static final int DEPTH = 4;
+    private static final int EPOCH_BITS = 16;
+    private static final int COUNT_MASK = (1 << 16) - 1;
+    private static final int EPOCH_MASK = (1 << EPOCH_BITS) - 1;
+
+    private final AtomicIntegerArray cells;
+    private final int slotMask;
+    private final int slotsPerTable;
+    private final int buckets;
+    private final long bucketNanos;
+    private final long seed = new SecureRandom().nextLong();
+    private final long originNanos = System.nanoTime();
+
+    /**
+     * @param slots   rows per table, rounded up to a power of two; roughly the
+     *                number of keys that can be tracked without over-counting
+     * @param buckets number of sub-buckets the window is split into
+     * @param windowNanos length of the sliding window
+     */
+    public SlidingWindowCounter(int slots, int buckets, long windowNanos) {
+        if (slots < 1 || buckets < 1 || buckets > EPOCH_MASK || windowNanos < buckets) {
+            throw new IllegalArgumentException("Invalid sliding window configuration");
+        }
+        int size = Integer.highestOneBit(slots - 1) << 1;
+        if (size < 1) {
+            size = 1;
+        }
+        this.slotMask = size - 1;
+        this.slotsPerTable = size;
+        this.buckets = buckets;
+        this.bucketNanos = windowNanos / buckets;
+        this.cells = new AtomicIntegerArray(DEPTH * size * buckets);
+    }
+
+    /**
+     * Creates a counter that uses at most {@code memoryBytes} for its tables,
+     * with as many rows per table as fit, rounded down to a power of two.
+     */
+    public static SlidingWindowCounter withMemoryBudget(long memoryBytes, int buckets, long windowNanos) {
+        long rowBytes = (long) DEPTH * Math.max(1, buckets) * Integer.BYTES;
+        long rows = Math.max(1, Math.min(1 << 24, memoryBytes / rowBytes));
+        return new SlidingWindowCounter((int) Long.highestOneBit(rows), buckets, windowNanos);
+    }
+
+    /**
+     * Records one event for the key and returns the number of events seen for
+     * it within the current window, including this one. {@code nowNanos} must
+     * come from {@link System#nanoTime()}.
+     */
+    public long incrementAndGet(String key, long nowNanos) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long epoch = (nowNanos - originNanos) / bucketNanos;
+        // Only the low bits of the epoch are stored; a cell untouched for a
+        // whole wrap-around may be read as current, which again only over-counts
+        int tag = (int) (epoch & EPOCH_MASK);
+        int offset = (int) (epoch % buckets);
+
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int base = (row * slotsPerTable + ((h1 + row * h2) & slotMask)) * buckets;
+            int index = base + offset;
+            while (true) {
+                int cell = cells.get(index);
+                int next = (cell >>> 16) == tag
+                        ? (cell & COUNT_MASK) == COUNT_MASK ? cell : cell + 1
+                        : (tag << 16) | 1;
+                if (cells.compareAndSet(index, cell, next)) {
+                    break;
+                }
+            }
+
+            long total = 0;
+            for (int i = 0; i < buckets; i++) {
+                int cell = cells.get(base + i);
+                int age = (tag - (cell >>> 16)) & EPOCH_MASK;
+                if (age < buckets) {
+                    total += cell & COUNT_MASK;
+                }
+            }
+            min = Math.min(min, total);
+        }
+        return min;
+    }
+
+    private long hash(String key) {
+        long h = seed;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x9e3779b97f4a7c15L;
+        }
+        h ^= h >>> 32;
+        h *= 0xd6e8feb86659fd93L;
+        h ^= h >>> 32;
+        return h;
+    }
+}
@@ -0,0 +1,433 @@
+package orangepay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.HttpStatusType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import orangepay.OrangeUtils.*;
+
+/**
+ * Runs the function handlers on an embedded JDK HTTP server, outside the
+ * Azure Functions host. Routes follow the host's layout ({@code /api/<name>})
+ * and accept the same HTTP method as their trigger, connections are kept
+ * alive, and SIGTERM drains in-flight requests before exit.
+ *
+ * Settings: {@code STANDALONE_PORT} (default 8080), {@code STANDALONE_THREADS}
+ * (pool size when virtual threads are unavailable), {@code STANDALONE_SHUTDOWN_SECONDS}
+ * and {@code STANDALONE_FUNCTION_KEY}, which must be sent as the
+ * {@code x-functions-key} header or {@code code} query parameter. The key is
+ * checked before the body is read. Like the host's function-level triggers the
+ * server refuses to start without a key, unless {@code STANDALONE_ALLOW_ANONYMOUS}
+ * is {@code true}. The peer address is appended to {@code X-Forwarded-For}, as
+ * the Functions front end does.
+ */
+public class StandaloneServer {
+
+    private static final Logger logger = Logger.getLogger(StandaloneServer.class.getName());
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final int MAX_BODY_BYTES = (int) OrangeUtils.envLong("STANDALONE_MAX_BODY_BYTES", 16 * 1024 * 1024);
+
+    /**
+     * Adapts a parsed request to one function's {@code run} method.
+     */
+    private interface Route {
+        HttpResponseMessage handle(StandaloneRequest<String> request, ExecutionContext context) throws Exception;
+    }
+
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+    private final Map<String, HttpMethod> methods = new HashMap<>();
+    private final String functionKey = System.getenv("STANDALONE_FUNCTION_KEY");
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+    private volatile boolean stopping;
+
+    public StandaloneServer(int port, int threads) throws IOException {
+        if (functionKey == null || functionKey.isEmpty()) {
+            if (!"true".equalsIgnoreCase(System.getenv("STANDALONE_ALLOW_ANONYMOUS"))) {
+                throw new IllegalStateException(
+                        "STANDALONE_FUNCTION_KEY is not set; set STANDALONE_ALLOW_ANONYMOUS=true to serve without one");
+            }
+            logger.warning("STANDALONE_FUNCTION_KEY is not set; all routes are served without authentication");
+        }
+        OneTimePasswordFunction otpFunction = new OneTimePasswordFunction();
+        OneStepPaymentFunction oneStepPaymentFunction = new OneStepPaymentFunction();
+        OSPFunction ospFunction = new OSPFunction();
+        QRCodeFunction qrCodeFunction = new QRCodeFunction();
+        BulkQRCodeFunction bulkQRCodeFunction = new BulkQRCodeFunction();
+        TransactionRollupFunction rollupFunction = new TransactionRollupFunction();
+        UpstreamMetricsFunction metricsFunction = new UpstreamMetricsFunction();
+
+        route("createOTPForPayment", HttpMethod.POST, (request, context) -> {
+            // The host binds typed bodies itself; mirror that here
+            OTPRequest body;
+            try {
+                body = objectMapper.readValue(request.getBody(), OTPRequest.class);
+            } catch (Exception e) {
+                body = null;
+            }
+            if (body == null) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Missing request body").build();
+            }
+            return otpFunction.run(request.withBody(body), context);
+        });
+        route("processOneStepPayment", HttpMethod.POST, (request, context) -> oneStepPaymentFunction.run(request.withOptionalBody(), context));
+        route("OneStepPayment", HttpMethod.POST, (request, context) -> ospFunction.processOneStepPayment(request.withOptionalBody(), context));
+        route("generateQRCode", HttpMethod.POST, (request, context) -> qrCodeFunction.run(request.withOptionalBody(), context));
+        route("generateQRCodeBulk", HttpMethod.POST, (request, context) -> bulkQRCodeFunction.run(request.withOptionalBody(), context));
+        route("getTransactionRollups", HttpMethod.GET, (request, context) -> rollupFunction.run(request.withOptionalBody(), context));
+        route("getUpstreamMetrics", HttpMethod.GET, (request, context) -> metricsFunction.run(request.withOptionalBody(), context));
+
+        this.executor = newExecutor(threads);
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/api/", this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    private void route(String name, HttpMethod method, Route route) {
+        routes.put(name, route);
+        methods.put(name, method);
+    }
+
+    public void start() {
+        // Open the outbox now so payments left over from a previous run replay without waiting for new traffic
+        PaymentOutbox.getDefault();
+        server.start();
+        logger.info("Standalone server listening on port " + server.getAddress().getPort() + " with routes " + routes.keySet());
+    }
+
+    /**
+     * Stops accepting connections, waits up to {@code graceSeconds} for
+     * in-flight requests to finish, then stops the worker threads.
+     */
+    public void stop(int graceSeconds) {
+        logger.info("Stopping standalone server");
+        stopping = true;
+        // HttpServer.stop(delay) waits out the whole delay on Java 17, so drain ourselves
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(graceSeconds);
+        while (activeExchanges.get() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        server.stop(0);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(graceSeconds, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Virtual threads when the runtime has them (Java 21+), a fixed pool otherwise
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        activeExchanges.incrementAndGet();
+        try (exchange) {
+            if (stopping) {
+                exchange.getResponseHeaders().set("Connection", "close");
+                send(exchange, 503, "Server is shutting down", Map.of());
+                return;
+            }
+            String name = exchange.getRequestURI().getPath().substring("/api/".length());
+            Route route = routes.get(name);
+            if (route == null) {
+                send(exchange, 404, "Function not found", Map.of());
+                return;
+            }
+            HttpMethod method = methods.get(name);
+            if (!method.name().equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Method not allowed", Map.of("Allow", method.name()));
+                return;
+            }
+
+            // Authenticate from headers and query alone, before reading any of the body
+            Map<String, String> headers = headers(exchange);
+            Map<String, String> query = query(exchange);
+            if (functionKey != null && !functionKey.isEmpty() && !keyMatches(headers.get("x-functions-key"))
+                    && !keyMatches(query.get("code"))) {
+                send(exchange, 401, "Unauthorized", Map.of());
+                return;
+            }
+
+            StandaloneRequest<String> request = parse(exchange, method, headers, query);
+            if (request == null) {
+                send(exchange, 413, "Request body too large", Map.of());
+                return;
+            }
+
+            HttpResponseMessage response;
+            try {
+                response = route.handle(request, new StandaloneContext(name));
+            } catch (Exception e) {
+                logger.severe("Unhandled error in " + name + ": " + e.getMessage());
+                response = request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR).body("Internal server error").build();
+            }
+            StandaloneResponse standaloneResponse = (StandaloneResponse) response;
+            send(exchange, standaloneResponse.getStatusCode(), standaloneResponse.getBody(), standaloneResponse.headers);
+        } finally {
+            activeExchanges.decrementAndGet();
+        }
+    }
+
+    // Constant-time comparison, so the key cannot be guessed from response timings
+    private boolean keyMatches(String candidate) {
+        return candidate != null && MessageDigest.isEqual(functionKey.getBytes(StandardCharsets.UTF_8),
+                candidate.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StandaloneRequest<String> parse(HttpExchange exchange, HttpMethod method,
+            Map<String, String> headers, Map<String, String> query) throws IOException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (body.length > MAX_BODY_BYTES) {
+            return null;
+        }
+        return new StandaloneRequest<>(exchange.getRequestURI(), method, headers, query,
+                new String(body, StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> headers(HttpExchange exchange) {
+        // The Functions host exposes lower-case header names
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            headers.put(header.getKey().toLowerCase(Locale.ROOT), String.join(",", header.getValue()));
+        }
+        // Anything the caller sent is kept but never trusted; the peer is always the last hop
+        String peer = exchange.getRemoteAddress().getAddress().getHostAddress();
+        headers.merge("x-forwarded-for", peer, (forwarded, last) -> forwarded + ", " + last);
+        return headers;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> query = new HashMap<>();
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+                String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                query.put(key, value);
+            }
+        }
+        return query;
+    }
+
+    private static void send(HttpExchange exchange, int status, Object body, Map<String, String> headers)
+            throws IOException {
+        byte[] bytes;
+        String contentType = "text/plain; charset=utf-8";
+        if (body == null) {
+            bytes = new byte[0];
+        } else if (body instanceof byte[]) {
+            bytes = (byte[]) body;
+            contentType = "application/octet-stream";
+        } else if (body instanceof String) {
+            bytes = ((String) body).getBytes(StandardCharsets.UTF_8);
+        } else {
+            bytes = objectMapper.writeValueAsBytes(body);
+            contentType = "application/json";
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+        // A fixed length keeps the connection reusable for the next request
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static class StandaloneRequest<T> implements HttpRequestMessage<T> {
+        private final URI uri;
+        private final HttpMethod method;
+        private final Map<String, String> headers;
+        private final Map<String, String> query;
+        private final T body;
+
+        StandaloneRequest(URI uri, HttpMethod method, Map<String, String> headers, Map<String, String> query, T body) {
+            this.uri = uri;
+            this.method = method;
+            this.headers = headers;
+            this.query = query;
+            this.body = body;
+        }
+
+        <B> StandaloneRequest<B> withBody(B newBody) {
+            return new StandaloneRequest<>(uri, method, headers, query, newBody);
+        }
+
+        StandaloneRequest<Optional<String>> withOptionalBody() {
+            String text = (String) body;
+            return withBody(text == null || text.isEmpty() ? Optional.empty() : Optional.of(text));
+        }
+
+        @Override
+        public URI getUri() {
+            return uri;
+        }
+
+        @Override
+        public HttpMethod getHttpMethod() {
+            return method;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public Map<String, String> getQueryParameters() {
+            return query;
+        }
+
+        @Override
+        public T getBody() {
+            return body;
+        }
+
+        @Override
+        public HttpResponseMessage.Builder createResponseBuilder(HttpStatus status) {
+            return new StandaloneResponse.Builder().status(status);
+        }
+
+        @Override
+        public HttpResponseMessage.Builder createResponseBuilder(HttpStatusType status) {
+            return new StandaloneResponse.Builder().status(status);
+        }
+    }
+
+    private static class StandaloneResponse implements HttpResponseMessage {
+        private final HttpStatusType status;
+        private final Map<String, String> headers;
+        private final Object body;
+
+        StandaloneResponse(HttpStatusType status, Map<String, String> headers, Object body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public HttpStatusType getStatus() {
+            return status;
+        }
+
+        @Override
+        public String getHeader(String key) {
+            return headers.get(key);
+        }
+
+        @Override
+        public Object getBody() {
+            return body;
+        }
+
+        static class Builder implements HttpResponseMessage.Builder {
+            private HttpStatusType status = HttpStatus.OK;
+            private final Map<String, String> headers = new LinkedHashMap<>();
+            private Object body;
+
+            @Override
+            public Builder status(HttpStatusType status) {
+                this.status = status;
+                return this;
+            }
+
+            @Override
+            public Builder header(String key, String value) {
+                headers.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Builder body(Object body) {
+                this.body = body;
+                return this;
+            }
+
+            @Override
+            public HttpResponseMessage build() {
+                return new StandaloneResponse(status, headers, body);
+            }
+        }
+    }
+
+    private static class StandaloneContext implements ExecutionContext {
+        private final String functionName;
+        private final String invocationId = UUID.randomUUID().toString();
+
+        StandaloneContext(String functionName) {
+            this.functionName = functionName;
+        }
+
+        @Override
+        public Logger getLogger() {
+            return Logger.getLogger("orangepay." + functionName);
+        }
+
+        @Override
+        public String getInvocationId() {
+            return invocationId;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return functionName;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = (int) OrangeUtils.envLong("STANDALONE_PORT", 8080);
+        int threads = (int) OrangeUtils.envLong("STANDALONE_THREADS", 200);
+        int graceSeconds = (int) OrangeUtils.envLong("STANDALONE_SHUTDOWN_SECONDS", 30);
+
+        StandaloneServer server = new StandaloneServer(port, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(graceSeconds), "standalone-shutdown"));
+        server.start();
+    }
+}
@@ -0,0 +1,61 @@
+package orangepay;
+
+import java.util.List;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+/**
+ * Azure Function with HTTP Trigger serving per-partner transaction rollups.
+ *
+ * Query parameters: {@code minutes} (up to 60) or {@code hours} (up to 24),
+ * and an optional {@code partner} ID. Defaults to the last 60 minutes.
+ */
+public class TransactionRollupFunction {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @FunctionName("getTransactionRollups")
+    public HttpResponseMessage run(
+            @HttpTrigger(name = "req",
+                         methods = {HttpMethod.GET},
+                         authLevel = AuthorizationLevel.FUNCTION) HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+
+        context.getLogger().info("Java HTTP trigger processed a request for transaction rollups.");
+
+        String minutes = request.getQueryParameters().get("minutes");
+        String hours = request.getQueryParameters().get("hours");
+        String partner = request.getQueryParameters().get("partner");
+
+        List<PaymentAnalytics.Rollup> rollups;
+        try {
+            if (hours != null) {
+                rollups = PaymentAnalytics.getDefault().lastHours(Integer.parseInt(hours), partner);
+            } else {
+                int window = minutes != null ? Integer.parseInt(minutes) : PaymentAnalytics.MINUTE_BUCKETS;
+                rollups = PaymentAnalytics.getDefault().lastMinutes(window, partner);
+            }
+        } catch (NumberFormatException e) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST).body("Invalid 'minutes' or 'hours' parameter").build();
+        }
+
+        try {
+            return request.createResponseBuilder(HttpStatus.OK)
+                    .header("Content-Type", "application/json")
+                    .body(objectMapper.writeValueAsString(rollups))
+                    .build();
+        } catch (Exception e) {
+            context.getLogger().severe("Failed to serialize rollups: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR).body("Error reading rollups").build();
+        }
+    }
+}
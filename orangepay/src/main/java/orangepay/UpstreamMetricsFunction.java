@@ -0,0 +1,43 @@
+package orangepay;
+
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.HttpTrigger;
+
+/**
+ * Azure Function with HTTP Trigger serving the upstream scheduler's per-lane
+ * metrics: calls submitted, waiting, completed and failed, SLO breaches and
+ * latencies.
+ */
+public class UpstreamMetricsFunction {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @FunctionName("getUpstreamMetrics")
+    public HttpResponseMessage run(
+            @HttpTrigger(name = "req",
+                         methods = {HttpMethod.GET},
+                         authLevel = AuthorizationLevel.FUNCTION) HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+
+        context.getLogger().info("Java HTTP trigger processed a request for upstream metrics.");
+
+        try {
+            return request.createResponseBuilder(HttpStatus.OK)
+                    .header("Content-Type", "application/json")
+                    .body(objectMapper.writeValueAsString(UpstreamScheduler.getDefault().getMetrics()))
+                    .build();
+        } catch (Exception e) {
+            context.getLogger().severe("Failed to serialize upstream metrics: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR).body("Error reading metrics").build();
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package orangepay;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Schedules outbound Orange Money calls over a shared concurrency and rate
+ * budget, with separate lanes for interactive, standard and bulk traffic.
+ *
+ * Lanes are served by smooth weighted round-robin. Part of the concurrency
+ * budget is reserved for interactive calls, so a bulk run can use whatever is
+ * left but never starve OTP or checkout requests.
+ */
+public class UpstreamScheduler {
+
+    /**
+     * Priority class of an upstream call.
+     */
+    public enum Priority {
+        INTERACTIVE, STANDARD, BULK
+    }
+
+    /**
+     * Point-in-time metrics for one lane. Counters are cumulative since startup,
+     * except {@code queueDepth}, which is the number of calls waiting right now.
+     * {@code abandoned} counts callers that ran out of time waiting for capacity;
+     * they are not part of {@code completed} or the latencies. Latency covers
+     * queueing plus the call itself.
+     */
+    public static class LaneMetrics {
+        public long submitted;
+        public int queueDepth;
+        public long completed;
+        public long failed;
+        public long abandoned;
+        public long sloBreaches;
+        public long sloMillis;
+        public double averageLatencyMillis;
+        public double averageQueueMillis;
+        public double maxLatencyMillis;
+    }
+
+    private static final UpstreamScheduler DEFAULT = new UpstreamScheduler(
+            (int) OrangeUtils.envLong("OM_MAX_CONCURRENCY", 64),
+            (int) OrangeUtils.envLong("OM_INTERACTIVE_RESERVED", 16),
+            OrangeUtils.envLong("OM_RATE_LIMIT_PER_SECOND", 0),
+            new int[] {
+                    (int) OrangeUtils.envLong("OM_WEIGHT_INTERACTIVE", 8),
+                    (int) OrangeUtils.envLong("OM_WEIGHT_STANDARD", 3),
+                    (int) OrangeUtils.envLong("OM_WEIGHT_BULK", 1) },
+            new long[] {
+                    OrangeUtils.envLong("OM_SLO_INTERACTIVE_MS", 1000),
+                    OrangeUtils.envLong("OM_SLO_STANDARD_MS", 3000),
+                    OrangeUtils.envLong("OM_SLO_BULK_MS", 30000) });
+
+    // Completes the slot of a caller that stopped waiting, so it is not counted as a call
+    private static final Exception ABANDONED = new Exception("Abandoned waiting for capacity", null, false, false) {
+        private static final long serialVersionUID = 1L;
+    };
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "upstream-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Lane[] lanes;
+    private final int maxConcurrency;
+    private final int sharedConcurrency;
+    private final long ratePerSecond;
+
+    // Guarded by this
+    private int inFlight;
+    private double rateTokens;
+    private long lastRefillNanos = System.nanoTime();
+    private boolean retryScheduled;
+
+    /**
+     * @param maxConcurrency      upstream calls allowed in flight at once
+     * @param interactiveReserved part of {@code maxConcurrency} only interactive calls may use
+     * @param ratePerSecond       upstream calls started per second, 0 for no limit
+     * @param weights             lane weights, in {@link Priority} order
+     * @param sloMillis           lane latency objectives, in {@link Priority} order
+     */
+    public UpstreamScheduler(int maxConcurrency, int interactiveReserved, long ratePerSecond, int[] weights,
+            long[] sloMillis) {
+        Priority[] priorities = Priority.values();
+        if (maxConcurrency < 1 || weights.length != priorities.length || sloMillis.length != priorities.length) {
+            throw new IllegalArgumentException("Invalid scheduler configuration");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.sharedConcurrency = Math.max(1, maxConcurrency - Math.max(0, interactiveReserved));
+        this.ratePerSecond = Math.max(0, ratePerSecond);
+        this.rateTokens = this.ratePerSecond;
+        this.lanes = new Lane[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            lanes[i] = new Lane(priorities[i], Math.max(1, weights[i]), sloMillis[i]);
+        }
+    }
+
+    /**
+     * Scheduler shared by every {@link OrangeMoneyApi} instance.
+     */
+    public static UpstreamScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Queues an asynchronous call. {@code call} is started once the lane is
+     * granted capacity, and the slot is held until its future completes.
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, Supplier<CompletableFuture<T>> call) {
+        return submit(priority, call, value -> true);
+    }
+
+    /**
+     * Like {@link #submit(Priority, Supplier)}, counting a call as failed in the
+     * lane metrics when {@code isSuccess} rejects its result, e.g. a non-2xx response.
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, Supplier<CompletableFuture<T>> call,
+            Predicate<? super T> isSuccess) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Lane lane = lanes[priority.ordinal()];
+        long enqueuedNanos = System.nanoTime();
+        lane.submitted.increment();
+
+        Runnable task = () -> {
+            long startedNanos = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = call.get();
+            } catch (Throwable e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((value, error) -> {
+                if (error == ABANDONED) {
+                    lane.abandoned.increment();
+                } else {
+                    lane.record(enqueuedNanos, startedNanos, System.nanoTime(),
+                            error == null && isSuccess.test(value));
+                }
+                release();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        synchronized (this) {
+            lane.pending.add(task);
+        }
+        dispatch();
+        return result;
+    }
+
+    /**
+     * Runs a blocking call on the caller's thread once the lane is granted capacity.
+     */
+    public <T> T execute(Priority priority, Callable<T> call) throws Exception {
+        return execute(priority, null, call);
+    }
+
+    /**
+     * Like {@link #execute(Priority, Callable)}, but gives up waiting for
+     * capacity once {@code deadline} runs out. A null deadline waits indefinitely.
+     */
+    public <T> T execute(Priority priority, Deadline deadline, Callable<T> call) throws Exception {
+        return execute(priority, deadline, call, value -> true);
+    }
+
+    /**
+     * Like {@link #execute(Priority, Deadline, Callable)}, counting a call as
+     * failed in the lane metrics when {@code isSuccess} rejects its result.
+     */
+    public <T> T execute(Priority priority, Deadline deadline, Callable<T> call, Predicate<? super T> isSuccess)
+            throws Exception {
+        CompletableFuture<Void> granted = new CompletableFuture<>();
+        CompletableFuture<T> done = new CompletableFuture<>();
+        submit(priority, () -> granted.complete(null) ? done : CompletableFuture.<T>failedFuture(ABANDONED), isSuccess);
+        try {
+            if (deadline == null) {
+                granted.get();
+            } else {
+                granted.get(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException | TimeoutException e) {
+            // Give up our place; the slot is released immediately if it was granted meanwhile
+            if (!granted.cancel(false)) {
+                done.completeExceptionally(ABANDONED);
+            }
+            if (e instanceof TimeoutException) {
+                throw new DeadlineExceededException(false, "Deadline exceeded waiting for upstream capacity", e);
+            }
+            throw e;
+        }
+        try {
+            T value = call.call();
+            done.complete(value);
+            return value;
+        } catch (Throwable e) {
+            done.completeExceptionally(e); // Counted as a failure in the lane metrics
+            throw e;
+        }
+    }
+
+    /**
+     * Returns current metrics for every lane.
+     */
+    public Map<Priority, LaneMetrics> getMetrics() {
+        Map<Priority, LaneMetrics> metrics = new EnumMap<>(Priority.class);
+        for (Lane lane : lanes) {
+            LaneMetrics snapshot = lane.snapshot();
+            synchronized (this) {
+                snapshot.queueDepth = lane.pending.size();
+            }
+            metrics.put(lane.priority, snapshot);
+        }
+        return metrics;
+    }
+
+    private void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            while (true) {
+                Lane lane = nextLane();
+                if (lane == null) {
+                    break;
+                }
+                if (!takeRateToken()) {
+                    scheduleRetry();
+                    break;
+                }
+                ready.add(lane.pending.poll());
+                inFlight++;
+            }
+        }
+        // Start calls outside the lock; they may do real work before returning a future
+        for (Runnable task : ready) {
+            task.run();
+        }
+    }
+
+    // Smooth weighted round-robin over lanes that have work and may use a free slot
+    private Lane nextLane() {
+        Lane best = null;
+        int eligibleWeight = 0;
+        for (Lane lane : lanes) {
+            if (lane.pending.isEmpty()) {
+                continue;
+            }
+            int limit = lane.priority == Priority.INTERACTIVE ? maxConcurrency : sharedConcurrency;
+            if (inFlight >= limit) {
+                continue;
+            }
+            lane.currentWeight += lane.weight;
+            eligibleWeight += lane.weight;
+            if (best == null || lane.currentWeight > best.currentWeight) {
+                best = lane;
+            }
+        }
+        if (best != null) {
+            best.currentWeight -= eligibleWeight;
+        }
+        return best;
+    }
+
+    private boolean takeRateToken() {
+        if (ratePerSecond == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        rateTokens = Math.min(ratePerSecond, rateTokens + (now - lastRefillNanos) * ratePerSecond / 1e9);
+        lastRefillNanos = now;
+        if (rateTokens < 1) {
+            return false;
+        }
+        rateTokens -= 1;
+        return true;
+    }
+
+    private void scheduleRetry() {
+        if (retryScheduled) {
+            return;
+        }
+        retryScheduled = true;
+        long delayNanos = (long) ((1 - rateTokens) * 1e9 / ratePerSecond) + 1;
+        timer.schedule(() -> {
+            synchronized (this) {
+                retryScheduled = false;
+            }
+            dispatch();
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static class Lane {
+        final Priority priority;
+        final int weight;
+        final long sloNanos;
+        final ArrayDeque<Runnable> pending = new ArrayDeque<>(); // Guarded by the scheduler
+        int currentWeight; // Guarded by the scheduler
+
+        final LongAdder submitted = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder abandoned = new LongAdder();
+        final LongAdder sloBreaches = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+        final LongAdder queueNanos = new LongAdder();
+        final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        Lane(Priority priority, int weight, long sloMillis) {
+            this.priority = priority;
+            this.weight = weight;
+            this.sloNanos = TimeUnit.MILLISECONDS.toNanos(sloMillis);
+        }
+
+        void record(long enqueuedNanos, long startedNanos, long finishedNanos, boolean success) {
+            long latency = finishedNanos - enqueuedNanos;
+            completed.increment();
+            if (!success) {
+                failed.increment();
+            }
+            if (latency > sloNanos) {
+                sloBreaches.increment();
+            }
+            latencyNanos.add(latency);
+            queueNanos.add(startedNanos - enqueuedNanos);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        }
+
+        LaneMetrics snapshot() {
+            LaneMetrics metrics = new LaneMetrics();
+            long count = completed.sum();
+            metrics.submitted = submitted.sum();
+            metrics.completed = count;
+            metrics.failed = failed.sum();
+            metrics.abandoned = abandoned.sum();
+            metrics.sloBreaches = sloBreaches.sum();
+            metrics.sloMillis = TimeUnit.NANOSECONDS.toMillis(sloNanos);
+            metrics.averageLatencyMillis = count == 0 ? 0 : latencyNanos.sum() / 1e6 / count;
+            metrics.averageQueueMillis = count == 0 ? 0 : queueNanos.sum() / 1e6 / count;
+            metrics.maxLatencyMillis = maxLatencyNanos.get() / 1e6;
+            return metrics;
+        }
+    }
+}
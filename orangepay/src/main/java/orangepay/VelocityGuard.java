@@ -0,0 +1,121 @@
+package orangepay;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-upstream abuse guard. Counts requests per MSISDN, partner ID and client
+ * IP over a sliding window and rejects callers that exceed the configured
+ * limits before any token, public key or RSA work is done.
+ *
+ * Limits are read from the environment; a limit of 0 disables that check.
+ * {@code VELOCITY_MEMORY_KB} is the memory shared by the three counters. Each
+ * gets a third of it, which with the default gives 16384 rows per table; about
+ * that many distinct keys per window can be told apart before counts of
+ * unrelated keys start adding up.
+ */
+public class VelocityGuard {
+
+    /**
+     * Outcome of a guard check.
+     */
+    public enum Verdict {
+        ALLOWED, MSISDN_LIMIT, PARTNER_LIMIT, IP_LIMIT
+    }
+
+    private static final int BUCKETS = 12;
+
+    private static final VelocityGuard DEFAULT = new VelocityGuard(
+            OrangeUtils.envLong("VELOCITY_MSISDN_LIMIT", 5),
+            OrangeUtils.envLong("VELOCITY_PARTNER_LIMIT", 600),
+            OrangeUtils.envLong("VELOCITY_IP_LIMIT", 120),
+            OrangeUtils.envLong("VELOCITY_WINDOW_SECONDS", 60),
+            OrangeUtils.envLong("VELOCITY_MEMORY_KB", 12288));
+
+    // Proxies in front of the Functions front end that append their own hop to X-Forwarded-For
+    private static final int TRUSTED_HOPS = (int) Math.max(0, OrangeUtils.envLong("VELOCITY_TRUSTED_HOPS", 0));
+
+    private final long msisdnLimit;
+    private final long partnerLimit;
+    private final long ipLimit;
+    private final SlidingWindowCounter msisdnCounter;
+    private final SlidingWindowCounter partnerCounter;
+    private final SlidingWindowCounter ipCounter;
+
+    /**
+     * @param memoryKb memory for all three counters together, in KiB
+     */
+    public VelocityGuard(long msisdnLimit, long partnerLimit, long ipLimit, long windowSeconds, long memoryKb) {
+        long windowNanos = TimeUnit.SECONDS.toNanos(Math.max(1, windowSeconds));
+        long counterBytes = Math.max(1, memoryKb) * 1024 / 3;
+        this.msisdnLimit = msisdnLimit;
+        this.partnerLimit = partnerLimit;
+        this.ipLimit = ipLimit;
+        this.msisdnCounter = SlidingWindowCounter.withMemoryBudget(counterBytes, BUCKETS, windowNanos);
+        this.partnerCounter = SlidingWindowCounter.withMemoryBudget(counterBytes, BUCKETS, windowNanos);
+        this.ipCounter = SlidingWindowCounter.withMemoryBudget(counterBytes, BUCKETS, windowNanos);
+    }
+
+    /**
+     * Guard shared by all functions in this app, so limits apply across endpoints.
+     */
+    public static VelocityGuard getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Records the request and checks it against every configured limit. Null or
+     * empty keys are not counted.
+     *
+     * Limits are checked from the caller outwards: client IP, then partner, then
+     * MSISDN. A key is only recorded once the checks before it have passed, so a
+     * caller that is already over its own limit cannot use up a victim's MSISDN
+     * quota.
+     */
+    public Verdict check(String msisdn, String partnerId, String clientIp) {
+        long now = System.nanoTime();
+        if (exceeds(ipCounter, ipLimit, clientIp, now)) {
+            return Verdict.IP_LIMIT;
+        }
+        if (exceeds(partnerCounter, partnerLimit, partnerId, now)) {
+            return Verdict.PARTNER_LIMIT;
+        }
+        if (exceeds(msisdnCounter, msisdnLimit, msisdn, now)) {
+            return Verdict.MSISDN_LIMIT;
+        }
+        return Verdict.ALLOWED;
+    }
+
+    /**
+     * Extracts the client IP from the headers set by the Functions front end.
+     *
+     * Entries to the left of the one appended by the front end are supplied by
+     * the caller and cannot be trusted, so the rightmost entry is used, or the
+     * one {@code VELOCITY_TRUSTED_HOPS} further left when more proxies are
+     * configured in front of the app.
+     */
+    public static String clientIp(Map<String, String> headers) {
+        if (headers == null) {
+            return null;
+        }
+        String forwarded = headers.get("x-forwarded-for");
+        if (forwarded == null || forwarded.isBlank()) {
+            return null;
+        }
+        String[] hops = forwarded.split(",");
+        String ip = hops[Math.max(0, hops.length - 1 - TRUSTED_HOPS)].trim();
+        // Azure appends the client port, e.g. "203.0.113.7:51234"
+        int colon = ip.lastIndexOf(':');
+        if (colon > 0 && ip.indexOf(':') == colon) {
+            ip = ip.substring(0, colon);
+        }
+        return ip;
+    }
+
+    private static boolean exceeds(SlidingWindowCounter counter, long limit, String key, long now) {
+        if (limit <= 0 || key == null || key.isEmpty()) {
+            return false;
+        }
+        return counter.incrementAndGet(key, now) > limit;
+    }
+}
@@ -0,0 +1,67 @@
+package orangepay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class DeadlineTest {
+
+    @Test
+    public void completedCallsLeaveNoTimeoutQueued() {
+        Deadline deadline = Deadline.afterMillis(TimeUnit.HOURS.toMillis(1));
+        for (int i = 0; i < 1000; i++) {
+            CompletableFuture<Integer> call = new CompletableFuture<>();
+            CompletableFuture<Integer> bounded = deadline.bound(call);
+            call.complete(i);
+            assertEquals(i, bounded.join());
+        }
+        assertTrue(Deadline.timer.getQueue().size() < 10, "cancelled timeouts should leave the queue");
+    }
+
+    @Test
+    public void expiryFailsResultAndCancelsCall() {
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletableFuture<String> bounded = Deadline.afterMillis(50).bound(call);
+
+        CompletionException e = assertThrows(CompletionException.class, bounded::join);
+        DeadlineExceededException cause = assertInstanceOf(DeadlineExceededException.class, e.getCause());
+        assertTrue(cause.isRequestSent());
+        // The call is cancelled on the timer thread just after the result fails
+        assertThrows(CancellationException.class, call::join);
+    }
+
+    @Test
+    public void expiredDeadlineFailsBeforeSending() {
+        Deadline deadline = Deadline.afterMillis(0);
+        DeadlineExceededException e = assertThrows(DeadlineExceededException.class, () -> deadline.remaining("token"));
+        assertFalse(e.isRequestSent());
+
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletionException bounded = assertThrows(CompletionException.class, () -> deadline.bound(call).join());
+        assertFalse(((DeadlineExceededException) bounded.getCause()).isRequestSent());
+        assertTrue(call.isCancelled());
+    }
+
+    @Test
+    public void headerBudgetIsCappedAndValidated() {
+        long cap = TimeUnit.MILLISECONDS.toNanos(60000);
+        long fallback = TimeUnit.MILLISECONDS.toNanos(15000);
+
+        long requested = Deadline.fromHeaders(Map.of(Deadline.TIMEOUT_HEADER, " 2000 ")).remainingNanos();
+        assertTrue(requested <= TimeUnit.MILLISECONDS.toNanos(2000) && requested > TimeUnit.MILLISECONDS.toNanos(1000));
+        assertTrue(Deadline.fromHeaders(Map.of(Deadline.TIMEOUT_HEADER, "999999999")).remainingNanos() <= cap);
+        assertTrue(Deadline.fromHeaders(Map.of(Deadline.TIMEOUT_HEADER, "-5")).remainingNanos() <= fallback);
+        assertTrue(Deadline.fromHeaders(Map.of(Deadline.TIMEOUT_HEADER, "soon")).remainingNanos() <= fallback);
+        assertTrue(Deadline.fromHeaders(null).remainingNanos() > TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+}
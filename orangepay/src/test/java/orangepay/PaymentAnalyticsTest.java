@@ -0,0 +1,44 @@
+package orangepay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class PaymentAnalyticsTest {
+
+    @Test
+    public void rollsUpCountsAmountsAndLatency() {
+        PaymentAnalytics analytics = new PaymentAnalytics(16);
+        for (int i = 0; i < 99; i++) {
+            analytics.record("P1", "OneStepPayment", 10.5, 20, true);
+        }
+        analytics.record("P1", "OneStepPayment", 10.5, 5000, false);
+
+        List<PaymentAnalytics.Rollup> rollups = analytics.lastMinutes(5, "P1");
+        assertEquals(1, rollups.size());
+        PaymentAnalytics.Rollup rollup = rollups.get(0);
+        assertEquals(100, rollup.count);
+        assertEquals(1, rollup.failures);
+        assertEquals(1039.5, rollup.amount, 0.001);
+        assertTrue(rollup.p50LatencyMillis >= 20 && rollup.p50LatencyMillis < 40);
+        assertTrue(rollup.p99LatencyMillis < 40);
+        assertEquals(100, analytics.lastHours(2, null).get(0).count);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUpdatedSeriesOffTheRequestThread() throws Exception {
+        PaymentAnalytics analytics = new PaymentAnalytics(4);
+        for (int i = 0; i < 6; i++) {
+            analytics.record("P" + i, "OneStepPayment", 1, 10, true);
+        }
+        // Eviction catches up in the background; the map never grows past twice the cap
+        long deadline = System.currentTimeMillis() + 5000;
+        while (analytics.lastMinutes(60, null).size() > 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(analytics.lastMinutes(60, null).size() <= 4);
+    }
+}
@@ -0,0 +1,176 @@
+package orangepay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import orangepay.UpstreamScheduler.Priority;
+
+public class PaymentOutboxTest {
+
+    private static final String BODY = "{\"reference\":\"R1\",\"customer\":{\"id\":\"771234567\",\"otp\":\"123456\"}}";
+
+    @TempDir
+    Path root;
+
+    /**
+     * Stands in for Orange Money: answers lookups with {@code lookupResponse}
+     * (or throws {@code lookupError}) and counts resubmissions.
+     */
+    private static class StubApi extends OrangeMoneyApi {
+        volatile String lookupResponse = "[]";
+        volatile RuntimeException lookupError;
+        final AtomicInteger submissions = new AtomicInteger();
+
+        @Override
+        public String getOrangeMoneyApi(String method, Priority priority) {
+            if (lookupError != null) {
+                throw lookupError;
+            }
+            return lookupResponse;
+        }
+
+        @Override
+        public String callOrangeMoneyApi(String method, String jsonRequest, Priority priority) {
+            submissions.incrementAndGet();
+            return "{}";
+        }
+    }
+
+    private static PaymentOutbox open(Path directory, OrangeMoneyApi api) throws IOException {
+        return new PaymentOutbox(directory, null, api, 2000, 1e6, 2, 0, 0);
+    }
+
+    private static void awaitEmpty(PaymentOutbox outbox) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (outbox.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void reloadsPendingEntriesAfterRestart() throws Exception {
+        Path directory = root.resolve("a");
+        PaymentOutbox outbox = open(directory, new StubApi());
+        outbox.enqueue("m", BODY, "R1", "timeout");
+        outbox.enqueue("m", BODY, "R2", "timeout");
+        outbox.close();
+
+        PaymentOutbox reopened = open(directory, new StubApi());
+        assertEquals(2, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void skipsTornLastLineAndKeepsAppending() throws Exception {
+        Path directory = root.resolve("a");
+        PaymentOutbox outbox = open(directory, new StubApi());
+        outbox.enqueue("m", BODY, "R1", "timeout");
+        outbox.close();
+        // A crash mid-write leaves a partial record at the end
+        Files.write(directory.resolve("outbox.log"), "{\"type\":\"ADD\",\"id\":\"torn".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        PaymentOutbox recovered = open(directory, new StubApi());
+        assertEquals(1, recovered.size());
+        recovered.enqueue("m", BODY, "R2", "timeout");
+        recovered.close();
+
+        PaymentOutbox reopened = open(directory, new StubApi());
+        assertEquals(2, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void compactsJournalOnceFinishedEntriesDominate() throws Exception {
+        Path directory = root.resolve("a");
+        StubApi api = new StubApi();
+        PaymentOutbox outbox = open(directory, api);
+        for (int i = 0; i < 1005; i++) {
+            outbox.enqueue("m", BODY, "R" + i, "timeout");
+        }
+        outbox.start(1);
+        awaitEmpty(outbox);
+        assertEquals(0, outbox.size());
+        assertEquals(1005, api.submissions.get());
+        outbox.close();
+
+        List<String> lines = Files.readAllLines(directory.resolve("outbox.log"));
+        // Without compaction the journal would hold an ADD and a DONE line per entry
+        assertTrue(lines.size() < 1005, "journal should have been compacted, has " + lines.size() + " lines");
+        PaymentOutbox reopened = open(directory, api);
+        assertEquals(0, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void closesEntryOnlyForMatchingReference() throws Exception {
+        StubApi api = new StubApi();
+        api.lookupResponse = "[{\"reference\":\"OTHER\",\"status\":\"SUCCESS\"}]";
+        PaymentOutbox outbox = open(root.resolve("a"), api);
+        outbox.enqueue("m", BODY, "R1", "timeout");
+        outbox.start(1);
+        awaitEmpty(outbox);
+        assertEquals(1, api.submissions.get(), "a SUCCESS for another reference must not close the entry");
+
+        api.lookupResponse = "[{\"reference\":\"R2\",\"status\":\"SUCCESS\"}]";
+        outbox.enqueue("m", BODY, "R2", "timeout");
+        awaitEmpty(outbox);
+        assertEquals(1, api.submissions.get(), "a payment found upstream must not be resubmitted");
+        outbox.close();
+    }
+
+    @Test
+    public void retriesLookupFailuresPastMaxAttempts() throws Exception {
+        StubApi api = new StubApi();
+        api.lookupError = new OrangeMoneyApiException(404, "Not found", null);
+        PaymentOutbox outbox = open(root.resolve("a"), api);
+        outbox.enqueue("m", BODY, "R1", "timeout");
+        outbox.start(1);
+        Thread.sleep(3500); // Three passes, more than the two attempts allowed
+        assertEquals(1, outbox.size());
+        assertEquals(0, api.submissions.get());
+        outbox.close();
+    }
+
+    @Test
+    public void refusesSecondOpenOfSameDirectory() throws Exception {
+        Path directory = root.resolve("a");
+        PaymentOutbox outbox = open(directory, new StubApi());
+        assertThrows(IOException.class, () -> open(directory, new StubApi()));
+        outbox.close();
+    }
+
+    @Test
+    public void adoptsJournalsOfInstancesThatAreGone() throws Exception {
+        PaymentOutbox gone = open(root.resolve("instance-a"), new StubApi());
+        gone.enqueue("m", BODY, "R1", "timeout");
+        gone.close();
+        PaymentOutbox live = open(root.resolve("instance-b"), new StubApi());
+        PaymentOutbox other = open(root.resolve("instance-c"), new StubApi());
+        other.enqueue("m", BODY, "R2", "timeout");
+
+        live.adoptOrphans(root);
+        assertEquals(1, live.size(), "only the unlocked journal is adopted");
+        assertFalse(Files.exists(root.resolve("instance-a").resolve("outbox.log")));
+        assertEquals(1, other.size());
+        live.close();
+        other.close();
+
+        PaymentOutbox reopened = open(root.resolve("instance-b"), new StubApi());
+        assertEquals(1, reopened.size());
+        reopened.close();
+    }
+}
@@ -0,0 +1,83 @@
+package orangepay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class SlidingWindowCounterTest {
+
+    private static final int BUCKETS = 12;
+    private static final long BUCKET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long WINDOW_NANOS = BUCKETS * BUCKET_NANOS;
+
+    @Test
+    public void countsEventsWithinTheWindow() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(1024, BUCKETS, WINDOW_NANOS);
+        long now = System.nanoTime();
+        assertEquals(1, counter.incrementAndGet("771234567", now));
+        assertEquals(2, counter.incrementAndGet("771234567", now + 3 * BUCKET_NANOS));
+        assertEquals(1, counter.incrementAndGet("779999999", now));
+    }
+
+    @Test
+    public void forgetsEventsOlderThanTheWindow() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(1024, BUCKETS, WINDOW_NANOS);
+        long now = System.nanoTime();
+        counter.incrementAndGet("771234567", now);
+        counter.incrementAndGet("771234567", now);
+        assertEquals(1, counter.incrementAndGet("771234567", now + (BUCKETS + 1) * BUCKET_NANOS));
+    }
+
+    @Test
+    public void forgetsOldEventsAcrossEpochWraparound() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(1024, BUCKETS, WINDOW_NANOS);
+        long now = System.nanoTime();
+        counter.incrementAndGet("771234567", now);
+        // Only 16 bits of the epoch are stored; well past one wrap, the old tag is out of the window
+        assertEquals(1, counter.incrementAndGet("771234567", now + (65536 + 3 * BUCKETS) * BUCKET_NANOS));
+    }
+
+    @Test
+    public void exactEpochAliasOnlyOverCounts() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(1024, BUCKETS, WINDOW_NANOS);
+        long now = System.nanoTime();
+        counter.incrementAndGet("771234567", now);
+        assertTrue(counter.incrementAndGet("771234567", now + 65536 * BUCKET_NANOS) >= 1);
+    }
+
+    @Test
+    public void collidingKeysShareCountsInsteadOfEvicting() {
+        // A single row per table makes every key collide in every table
+        SlidingWindowCounter counter = new SlidingWindowCounter(1, BUCKETS, WINDOW_NANOS);
+        long now = System.nanoTime();
+        counter.incrementAndGet("771111111", now);
+        counter.incrementAndGet("771111111", now);
+        counter.incrementAndGet("772222222", now);
+        assertEquals(4, counter.incrementAndGet("771111111", now));
+    }
+
+    @Test
+    public void neverUnderCountsUnderLoad() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(64, BUCKETS, WINDOW_NANOS);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            counter.incrementAndGet(Integer.toString(700_000_000 + i), now);
+        }
+        long count = 0;
+        for (int i = 0; i < 5; i++) {
+            count = counter.incrementAndGet("771234567", now);
+        }
+        assertTrue(count >= 5, "count-min estimate must not drop below the true count");
+    }
+
+    @Test
+    public void memoryBudgetRoundsRowsDownToPowerOfTwo() {
+        // 4 tables x 12 buckets x 4 bytes = 192 bytes per row
+        SlidingWindowCounter counter = SlidingWindowCounter.withMemoryBudget(192 * 1000, BUCKETS, WINDOW_NANOS);
+        long now = System.nanoTime();
+        assertEquals(1, counter.incrementAndGet("771234567", now));
+    }
+}
@@ -0,0 +1,98 @@
+package orangepay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import orangepay.UpstreamScheduler.LaneMetrics;
+import orangepay.UpstreamScheduler.Priority;
+
+public class UpstreamSchedulerTest {
+
+    private static UpstreamScheduler scheduler(int maxConcurrency, int interactiveReserved, int... weights) {
+        return new UpstreamScheduler(maxConcurrency, interactiveReserved, 0, weights, new long[] { 1000, 3000, 30000 });
+    }
+
+    @Test
+    public void interactiveCallsUseReservedCapacity() {
+        UpstreamScheduler scheduler = scheduler(2, 1, 1, 1, 1);
+        CompletableFuture<String> hold = new CompletableFuture<>();
+        scheduler.submit(Priority.BULK, () -> hold);
+        CompletableFuture<String> secondBulk = scheduler.submit(Priority.BULK, () -> CompletableFuture.completedFuture("bulk"));
+        CompletableFuture<String> interactive = scheduler.submit(Priority.INTERACTIVE,
+                () -> CompletableFuture.completedFuture("interactive"));
+
+        assertEquals("interactive", interactive.join());
+        assertFalse(secondBulk.isDone(), "bulk must not take the reserved slot");
+        assertEquals(1, scheduler.getMetrics().get(Priority.BULK).queueDepth);
+
+        hold.complete("done");
+        assertEquals("bulk", secondBulk.join());
+    }
+
+    @Test
+    public void weightedLanesDoNotStarveBulk() {
+        UpstreamScheduler scheduler = scheduler(1, 0, 2, 1, 1);
+        CompletableFuture<String> hold = new CompletableFuture<>();
+        scheduler.submit(Priority.STANDARD, () -> hold);
+
+        List<Priority> order = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(Priority.INTERACTIVE, () -> {
+                order.add(Priority.INTERACTIVE);
+                return CompletableFuture.completedFuture(null);
+            });
+            scheduler.submit(Priority.BULK, () -> {
+                order.add(Priority.BULK);
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+        hold.complete("done");
+
+        assertEquals(6, order.size());
+        assertEquals(Priority.INTERACTIVE, order.get(0));
+        assertTrue(order.subList(0, 3).contains(Priority.BULK), "bulk should be served within the first round");
+    }
+
+    @Test
+    public void callerThatTimesOutIsCountedAsAbandonedAndReleasesItsPlace() throws Exception {
+        UpstreamScheduler scheduler = scheduler(1, 0, 1, 1, 1);
+        CompletableFuture<String> hold = new CompletableFuture<>();
+        scheduler.submit(Priority.STANDARD, () -> hold);
+
+        DeadlineExceededException e = assertThrows(DeadlineExceededException.class,
+                () -> scheduler.execute(Priority.STANDARD, Deadline.afterMillis(100), () -> "never"));
+        assertFalse(e.isRequestSent());
+
+        hold.complete("done");
+        assertEquals("next", scheduler.execute(Priority.STANDARD, Deadline.afterMillis(1000), () -> "next"));
+
+        LaneMetrics metrics = scheduler.getMetrics().get(Priority.STANDARD);
+        assertEquals(3, metrics.submitted);
+        assertEquals(2, metrics.completed);
+        assertEquals(0, metrics.failed);
+        assertEquals(1, metrics.abandoned);
+        assertEquals(0, metrics.queueDepth);
+    }
+
+    @Test
+    public void rejectedResultsAndExceptionsCountAsFailures() throws Exception {
+        UpstreamScheduler scheduler = scheduler(4, 0, 1, 1, 1);
+        assertEquals(500, (int) scheduler.execute(Priority.STANDARD, null, () -> 500, status -> status < 400));
+        assertThrows(IllegalStateException.class, () -> scheduler.execute(Priority.STANDARD, () -> {
+            throw new IllegalStateException("boom");
+        }));
+        assertEquals(200, (int) scheduler.execute(Priority.STANDARD, null, () -> 200, status -> status < 400));
+
+        LaneMetrics metrics = scheduler.getMetrics().get(Priority.STANDARD);
+        assertEquals(3, metrics.completed);
+        assertEquals(2, metrics.failed);
+    }
+}
@@ -0,0 +1,44 @@
+package orangepay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class VelocityGuardTest {
+
+    @Test
+    public void collidingKeyCannotResetVictimLimit() {
+        VelocityGuard guard = new VelocityGuard(5, 0, 0, 60, 1024);
+        int allowed = 0;
+        for (int i = 0; i < 50; i++) {
+            guard.check("700019605", null, null);
+            if (guard.check("770000000", null, null) == VelocityGuard.Verdict.ALLOWED) {
+                allowed++;
+            }
+        }
+        assertEquals(5, allowed);
+    }
+
+    @Test
+    public void requestsOverIpLimitDoNotUseMsisdnQuota() {
+        VelocityGuard guard = new VelocityGuard(5, 0, 3, 60, 1024);
+        for (int i = 0; i < 10; i++) {
+            guard.check("771111111", null, "198.51.100.1");
+        }
+        // Only the three requests that passed the IP check were counted for the MSISDN
+        assertEquals(VelocityGuard.Verdict.ALLOWED, guard.check("771111111", null, "198.51.100.2"));
+        assertEquals(VelocityGuard.Verdict.ALLOWED, guard.check("771111111", null, "198.51.100.2"));
+        assertEquals(VelocityGuard.Verdict.MSISDN_LIMIT, guard.check("771111111", null, "198.51.100.2"));
+    }
+
+    @Test
+    public void clientIpUsesEntryAppendedByFrontEnd() {
+        assertEquals("203.0.113.7",
+                VelocityGuard.clientIp(Map.of("x-forwarded-for", "198.51.100.9, 203.0.113.7:51234")));
+        assertEquals("203.0.113.7", VelocityGuard.clientIp(Map.of("x-forwarded-for", "203.0.113.7")));
+        assertNull(VelocityGuard.clientIp(Map.of()));
+    }
+}